@@ -0,0 +1,172 @@
+package com.arda.bctransform.bench;
+
+import com.arda.bctransform.Config;
+import com.arda.bctransform.JarTransformer;
+import com.arda.bctransform.runtime.EventLog;
+import com.arda.bctransform.runtime.Metrics;
+import com.arda.bctransform.runtime.StdoutSink;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-call cost of each probe style on a small method, against the same
+ * method uninstrumented. stdout goes to a discarding stream (the
+ * stdout sink to /dev/null) and the metrics/async sinks to a temp
+ * directory, so the numbers measure the probe rather than the terminal.
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} should be 0 B/op
+ * for the {@code -stdoutsink} rows and for baseline. The {@code -jfr} row
+ * runs without a recording, so it measures the disabled guard alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProbeOverheadBenchmark {
+
+    private static final String TARGET = ProbeTarget.class.getName();
+
+    @Param(
+        {
+            "baseline",
+            "entry-stdout",
+            "timing-stdout",
+            "entry-timing-stdout",
+            "timing-stdoutsink",
+            "entry-timing-stdoutsink",
+            "entry-timing-slf4j",
+            "entry-timing-jfr",
+            "timing-metrics",
+            "entry-timing-async",
+        }
+    )
+    String probe;
+
+    private IntOp op;
+    private int x;
+    private PrintStream realOut;
+    private Path sinkDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        realOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        sinkDir = Files.createTempDirectory("bctransform-sinks");
+        System.setProperty(
+            EventLog.FILE_PROPERTY,
+            sinkDir.resolve("events.tsv").toString()
+        );
+        System.setProperty(
+            Metrics.FILE_PROPERTY,
+            sinkDir.resolve("metrics.tsv").toString()
+        );
+        Path devNull = Path.of("/dev/null");
+        System.setProperty(
+            StdoutSink.FILE_PROPERTY,
+            Files.exists(devNull)
+                ? devNull.toString()
+                : sinkDir.resolve("stdout.txt").toString()
+        );
+        byte[] original = classBytes(ProbeTarget.class);
+        byte[] bytes = "baseline".equals(probe)
+            ? original
+            : transform(original, config(probe));
+        Class<?> c = new DefiningLoader().define(TARGET, bytes);
+        op = (IntOp) c.getDeclaredConstructor().newInstance();
+        x = 17;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(realOut);
+    }
+
+    @Benchmark
+    public int call() {
+        return op.apply(x);
+    }
+
+    private static Config config(String probe) {
+        Config cfg = new Config();
+        cfg.entryLog = probe.contains("entry");
+        cfg.timing = probe.contains("timing");
+        if (probe.endsWith("slf4j")) cfg.logger = "slf4j";
+        if (probe.endsWith("jfr")) cfg.logger = "jfr";
+        if (probe.endsWith("metrics")) cfg.sink = "metrics";
+        if (probe.endsWith("async")) cfg.sink = "async";
+        if (probe.endsWith("stdoutsink")) cfg.sink = "stdout";
+        cfg.includeMethodRegex = "^apply\\(";
+        cfg.threads = 1;
+        return cfg;
+    }
+
+    private static byte[] transform(byte[] original, Config cfg)
+        throws Exception {
+        String entry = TARGET.replace('.', '/') + ".class";
+        Path dir = Files.createTempDirectory("bctransform-probe");
+        Path in = dir.resolve("in.jar");
+        Path out = dir.resolve("out.jar");
+        try (
+            JarOutputStream jos = new JarOutputStream(Files.newOutputStream(in))
+        ) {
+            jos.putNextEntry(new JarEntry(entry));
+            jos.write(original);
+            jos.closeEntry();
+        }
+        JarTransformer.transformJar(in, out, cfg);
+        try (
+            ZipFile zf = new ZipFile(out.toFile());
+            InputStream s = zf.getInputStream(zf.getEntry(entry))
+        ) {
+            return s.readAllBytes();
+        } finally {
+            Files.deleteIfExists(in);
+            Files.deleteIfExists(out);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static byte[] classBytes(Class<?> c) throws Exception {
+        String res = "/" + c.getName().replace('.', '/') + ".class";
+        try (InputStream in = c.getResourceAsStream(res)) {
+            return in.readAllBytes();
+        }
+    }
+
+    public interface IntOp {
+        int apply(int x);
+    }
+
+    /** Defines the target class itself; everything else comes from parent. */
+    private static final class DefiningLoader extends ClassLoader {
+
+        DefiningLoader() {
+            super(ProbeOverheadBenchmark.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.arda.bctransform.bench;
+
+/** The method measured by {@link ProbeOverheadBenchmark}. */
+public final class ProbeTarget implements ProbeOverheadBenchmark.IntOp {
+
+    @Override
+    public int apply(int x) {
+        return x * 31 + (x >>> 3);
+    }
+}
@@ -0,0 +1,105 @@
+package com.arda.bctransform.bench;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+/** Generates jars of plain classes with loops and branches to transform. */
+final class SyntheticJar {
+
+    static long write(Path jar, int classes, int methodsPerClass)
+        throws IOException {
+        long bytes = 0;
+        try (
+            OutputStream out = Files.newOutputStream(jar);
+            JarOutputStream jos = new JarOutputStream(out)
+        ) {
+            for (int c = 0; c < classes; c++) {
+                String name = "bench/gen/p" + (c % 16) + "/C" + c;
+                byte[] b = generate(name, methodsPerClass);
+                jos.putNextEntry(new JarEntry(name + ".class"));
+                jos.write(b);
+                jos.closeEntry();
+                bytes += b.length;
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] generate(String name, int methods) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(
+            V11,
+            ACC_PUBLIC | ACC_SUPER,
+            name,
+            null,
+            "java/lang/Object",
+            null
+        );
+
+        MethodVisitor init = cw.visitMethod(
+            ACC_PUBLIC,
+            "<init>",
+            "()V",
+            null,
+            null
+        );
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(
+            INVOKESPECIAL,
+            "java/lang/Object",
+            "<init>",
+            "()V",
+            false
+        );
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        for (int m = 0; m < methods; m++) {
+            MethodVisitor mv = cw.visitMethod(
+                ACC_PUBLIC | ACC_STATIC,
+                "m" + m,
+                "(I)I",
+                null,
+                null
+            );
+            mv.visitCode();
+            Label loop = new Label();
+            Label done = new Label();
+            Label odd = new Label();
+            mv.visitInsn(ICONST_0);
+            mv.visitVarInsn(ISTORE, 1);
+            mv.visitLabel(loop);
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitVarInsn(ILOAD, 0);
+            mv.visitJumpInsn(IF_ICMPGE, done);
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IAND);
+            mv.visitJumpInsn(IFNE, odd);
+            mv.visitIincInsn(0, m);
+            mv.visitLabel(odd);
+            mv.visitIincInsn(1, 1);
+            mv.visitJumpInsn(GOTO, loop);
+            mv.visitLabel(done);
+            mv.visitVarInsn(ILOAD, 0);
+            mv.visitInsn(IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private SyntheticJar() {}
+}
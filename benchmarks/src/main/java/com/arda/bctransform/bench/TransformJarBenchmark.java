@@ -0,0 +1,92 @@
+package com.arda.bctransform.bench;
+
+import com.arda.bctransform.Config;
+import com.arda.bctransform.JarTransformer;
+import com.arda.bctransform.TransformReport;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole-jar transform throughput. The classes and bytes counters give
+ * classes/sec and bytes/sec; run with {@code -prof gc} for the allocation
+ * rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransformJarBenchmark {
+
+    @Param({ "200", "2000" })
+    int classes;
+
+    @Param({ "4", "40" })
+    int methodsPerClass;
+
+    @Param({ "1", "4" })
+    int threads;
+
+    private Path dir;
+    private Path input;
+    private Path output;
+    private long inputBytes;
+    private Config cfg;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Throughput {
+
+        public long classes;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            classes = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("bctransform-bench");
+        input = dir.resolve("in.jar");
+        output = dir.resolve("out.jar");
+        inputBytes = SyntheticJar.write(input, classes, methodsPerClass);
+        cfg = new Config();
+        cfg.entryLog = true;
+        cfg.timing = true;
+        cfg.threads = threads;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(output);
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public TransformReport transformJar(Throughput t) throws Exception {
+        TransformReport rep = JarTransformer.transformJar(input, output, cfg);
+        t.classes += classes;
+        t.bytes += inputBytes;
+        return rep;
+    }
+}
@@ -0,0 +1,178 @@
+package com.arda.bctransform;
+
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class Agent {
+
+    private static final int RETRANSFORM_BATCH = 256;
+
+    public static void premain(String args, Instrumentation inst)
+        throws Exception {
+        install(args, inst, false);
+    }
+
+    public static void agentmain(String args, Instrumentation inst)
+        throws Exception {
+        install(args, inst, true);
+    }
+
+    private static synchronized void install(
+        String args,
+        Instrumentation inst,
+        boolean attached
+    ) throws Exception {
+        AgentArgs a = AgentArgs.parse(args);
+        AgentTransformer t = new AgentTransformer(a.cfg);
+        inst.addTransformer(t, inst.isRetransformClassesSupported());
+        if (a.cfg.reportPath != null) {
+            Runtime.getRuntime().addShutdownHook(
+                new Thread(() -> t.writeReport(), "bctransform-agent-report")
+            );
+        }
+        if (attached && inst.isRetransformClassesSupported()) {
+            retransformLoaded(inst, t);
+        }
+    }
+
+    private static void retransformLoaded(
+        Instrumentation inst,
+        AgentTransformer t
+    ) {
+        List<Class<?>> batch = new ArrayList<>();
+        for (Class<?> c : inst.getAllLoadedClasses()) {
+            if (!inst.isModifiableClass(c) || !t.wants(c)) continue;
+            t.markPreexisting(c);
+            batch.add(c);
+            if (batch.size() == RETRANSFORM_BATCH) {
+                retransform(inst, batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) retransform(inst, batch);
+    }
+
+    private static void retransform(Instrumentation inst, List<Class<?>> cs) {
+        try {
+            inst.retransformClasses(cs.toArray(new Class<?>[0]));
+        } catch (Throwable batchFailed) {
+            // one bad class fails the whole batch; retry individually
+            for (Class<?> c : cs) {
+                try {
+                    inst.retransformClasses(c);
+                } catch (Throwable e) {
+                    System.err.println(
+                        "[bctransform] retransform failed for " +
+                        c.getName() +
+                        ": " +
+                        e
+                    );
+                }
+            }
+        }
+    }
+
+    /**
+     * Agent options, comma separated: {@code config=<yaml>}, {@code
+     * report=<json>}, {@code sink=}, {@code logger=}, {@code logLevel=},
+     * {@code sampleRate=1/N}, {@code includeClassRegex=}, and the flags
+     * {@code entryLog}, {@code timing} and {@code switchable}. Options
+     * override the YAML. A comma inside a value, such as a regex
+     * quantifier, is written {@code \,}; other backslashes are kept as
+     * they are.
+     */
+    static final class AgentArgs {
+
+        Config cfg = new Config();
+
+        static AgentArgs parse(String args) throws Exception {
+            AgentArgs a = new AgentArgs();
+            if (args == null || args.isBlank()) return a;
+            List<String> parts = split(args);
+            for (String p : parts) {
+                int eq = p.indexOf('=');
+                String k = (eq < 0 ? p : p.substring(0, eq)).trim();
+                if (k.equals("config")) {
+                    String v = eq < 0 ? null : p.substring(eq + 1).trim();
+                    a.cfg = ConfigLoader.load(Path.of(value(k, v)));
+                }
+            }
+            for (String p : parts) {
+                int eq = p.indexOf('=');
+                String k = (eq < 0 ? p : p.substring(0, eq)).trim();
+                String v = eq < 0 ? null : p.substring(eq + 1).trim();
+                switch (k) {
+                    case "config":
+                    case "":
+                        break;
+                    case "entryLog":
+                        a.cfg.entryLog = true;
+                        break;
+                    case "timing":
+                        a.cfg.timing = true;
+                        break;
+                    case "switchable":
+                        a.cfg.switchable = true;
+                        break;
+                    case "report":
+                        a.cfg.reportPath = Path.of(value(k, v));
+                        break;
+                    case "sink":
+                        a.cfg.sink = value(k, v);
+                        break;
+                    case "logger":
+                        a.cfg.logger = value(k, v);
+                        break;
+                    case "logLevel":
+                        a.cfg.logLevel = value(k, v);
+                        break;
+                    case "sampleRate":
+                        a.cfg.sampleRate = Config.parseSampleRate(value(k, v));
+                        break;
+                    case "includeClassRegex":
+                        a.cfg.includeClassRegex = value(k, v);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(
+                            "Unknown agent option: " + k
+                        );
+                }
+            }
+            return a;
+        }
+
+        /** Splits on commas, turning each {@code \,} into a plain comma. */
+        private static List<String> split(String args) {
+            List<String> parts = new ArrayList<>();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < args.length(); i++) {
+                char c = args.charAt(i);
+                if (c == '\\' && i + 1 < args.length()
+                        && args.charAt(i + 1) == ',') {
+                    sb.append(',');
+                    i++;
+                } else if (c == ',') {
+                    parts.add(sb.toString());
+                    sb.setLength(0);
+                } else {
+                    sb.append(c);
+                }
+            }
+            parts.add(sb.toString());
+            return parts;
+        }
+
+        private static String value(String key, String v) {
+            if (v == null || v.isEmpty()) {
+                throw new IllegalArgumentException(
+                    "agent option " + key + " needs a value"
+                );
+            }
+            return v;
+        }
+    }
+
+    private Agent() {}
+}
@@ -0,0 +1,226 @@
+package com.arda.bctransform;
+
+import com.arda.bctransform.runtime.MethodRegistry;
+import com.arda.bctransform.runtime.StdoutSink;
+import com.arda.bctransform.runtime.Switches;
+import java.lang.instrument.ClassFileTransformer;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Load-time counterpart of {@link JarTransformer}: same selectors, prescan
+ * and visitors, applied to classes as they are defined.
+ */
+public final class AgentTransformer implements ClassFileTransformer {
+
+    private static final String OWN_PACKAGE = "com/arda/bctransform/";
+
+    private final Config cfg;
+    private final Selectors selectors;
+    private final URL agentLocation;
+    private final TransformReport report = new TransformReport();
+    private final Map<ClassLoader, ClassHierarchy> hierarchies =
+        new WeakHashMap<>();
+    // classes already transformed once, per loader, for retransforms
+    private final Map<ClassLoader, Map<String, Registered>> registered =
+        new WeakHashMap<>();
+    private final Set<Class<?>> preexisting = Collections.newSetFromMap(
+        Collections.synchronizedMap(new WeakHashMap<>())
+    );
+
+    public AgentTransformer(Config cfg) {
+        this.cfg = cfg;
+        this.selectors = Selectors.compile(cfg);
+        CodeSource cs = AgentTransformer.class.getProtectionDomain()
+            .getCodeSource();
+        this.agentLocation = cs == null ? null : cs.getLocation();
+    }
+
+    @Override
+    public byte[] transform(
+        ClassLoader loader,
+        String className,
+        Class<?> classBeingRedefined,
+        ProtectionDomain pd,
+        byte[] classfileBuffer
+    ) {
+        if (className == null || !seesRuntime(loader)) return null;
+        if (className.startsWith(OWN_PACKAGE)) return null;
+        if (!selectors.classEligible(className)) return null;
+        if (fromAgentJar(pd)) return null;
+        try {
+            return transform(
+                loader,
+                classfileBuffer,
+                classBeingRedefined != null &&
+                preexisting.contains(classBeingRedefined)
+            );
+        } catch (Throwable e) {
+            System.err.println(
+                "[bctransform] skipped " + className + ": " + e
+            );
+            return null;
+        }
+    }
+
+    boolean wants(Class<?> c) {
+        if (c.isArray() || c.isPrimitive()) return false;
+        if (!seesRuntime(c.getClassLoader())) return false;
+        String name = c.getName().replace('.', '/');
+        if (name.startsWith(OWN_PACKAGE)) return false;
+        return (
+            selectors.classEligible(name) &&
+            !fromAgentJar(c.getProtectionDomain())
+        );
+    }
+
+    void markPreexisting(Class<?> c) {
+        preexisting.add(c);
+    }
+
+    void writeReport() {
+        // snapshot first: writing loads classes, which re-enters transform
+        TransformReport snapshot = new TransformReport();
+        synchronized (report) {
+            snapshot.merge(report);
+        }
+        try {
+            ReportWriter.write(cfg.reportPath, snapshot);
+            if (ClassTransformVisitor.needsMethodIds(cfg)) {
+                ReportWriter.writeMethodTable(cfg.reportPath, snapshot);
+            }
+        } catch (Exception e) {
+            System.err.println("[bctransform] report failed: " + e);
+        }
+    }
+
+    private byte[] transform(
+        ClassLoader loader,
+        byte[] original,
+        boolean schemaFrozen
+    ) {
+        ClassHierarchy hierarchy = hierarchyFor(loader);
+        TransformContext ctx = new TransformContext(
+            cfg,
+            selectors,
+            hierarchy,
+            null
+        );
+        ClassReader cr = new ClassReader(original);
+        hierarchy.add(cr);
+        TransformReport classRep = new TransformReport();
+        classRep.scannedClasses++;
+        Set<String> selected = ClassPrescan.selectedMethods(cr, ctx, classRep);
+        String[] names = selected.toArray(new String[0]);
+        Registered prev = registration(loader, cr.getClassName());
+        byte[] out = null;
+        if (names.length > 0) {
+            int base = prev != null && Arrays.equals(prev.names, names)
+                ? prev.base
+                : register(cr.getClassName().replace('/', '.'), names);
+            remember(loader, cr.getClassName(), new Registered(base, names));
+            ClassWriter cw = new HierarchyClassWriter(
+                cr,
+                ClassWriter.COMPUTE_FRAMES,
+                hierarchy
+            );
+            ClassTransformVisitor cv = new ClassTransformVisitor(
+                cw,
+                cfg,
+                selectors,
+                selected,
+                classRep
+            ).fixedMethodIds(base);
+            if (schemaFrozen) cv.withoutNewMembers();
+            cr.accept(cv, ClassReader.SKIP_FRAMES);
+            out = cw.toByteArray();
+        } else {
+            classRep.fastPathClasses++;
+            remember(loader, cr.getClassName(), new Registered(-1, names));
+        }
+        // a retransformed class is already in the report
+        if (prev == null) {
+            synchronized (report) {
+                report.merge(classRep);
+            }
+        }
+        return out;
+    }
+
+    private int register(String owner, String[] names) {
+        int base = cfg.switchable
+            ? Switches.register(owner, names)
+            : MethodRegistry.register(owner, names);
+        if (
+            ClassTransformVisitor.STDOUT_SINK.equals(
+                ClassTransformVisitor.runtimeSink(cfg)
+            )
+        ) {
+            StdoutSink.define(base, names.length, cfg.logPrefix);
+        }
+        return base;
+    }
+
+    private Registered registration(ClassLoader loader, String className) {
+        synchronized (registered) {
+            Map<String, Registered> classes = registered.get(loader);
+            return classes == null ? null : classes.get(className);
+        }
+    }
+
+    private void remember(ClassLoader loader, String className, Registered r) {
+        synchronized (registered) {
+            registered
+                .computeIfAbsent(loader, l -> new HashMap<>())
+                .put(className, r);
+        }
+    }
+
+    private ClassHierarchy hierarchyFor(ClassLoader loader) {
+        synchronized (hierarchies) {
+            return hierarchies.computeIfAbsent(loader, ClassHierarchy::new);
+        }
+    }
+
+    /**
+     * Injected probes reference the runtime package, so only loaders that
+     * delegate to the agent's loader qualify (not bootstrap or platform).
+     */
+    private static boolean seesRuntime(ClassLoader loader) {
+        ClassLoader agentLoader = AgentTransformer.class.getClassLoader();
+        for (ClassLoader l = loader; l != null; l = l.getParent()) {
+            if (l == agentLoader) return true;
+        }
+        return false;
+    }
+
+    private boolean fromAgentJar(ProtectionDomain pd) {
+        if (agentLocation == null || pd == null) return false;
+        CodeSource cs = pd.getCodeSource();
+        return cs != null && agentLocation.equals(cs.getLocation());
+    }
+
+    /**
+     * Method ids given to a class. A retransform that selects the same
+     * methods reuses them, so metrics and switches stay on one id each.
+     */
+    private static final class Registered {
+
+        final int base;
+        final String[] names;
+
+        Registered(int base, String[] names) {
+            this.base = base;
+            this.names = names;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.arda.bctransform;
+
+/**
+ * Bytes of entry data that writers may have in flight at once, shared by
+ * every jar of a run. A charge larger than the whole budget is clamped to
+ * it, so an oversized entry still goes through, alone.
+ */
+final class ByteBudget {
+
+    private final long limit;
+    private long used = 0;
+
+    ByteBudget(long limit) {
+        this.limit = limit;
+    }
+
+    long limit() {
+        return limit;
+    }
+
+    /** Takes {@code n} bytes if they are free now; returns the charge. */
+    synchronized long tryAcquire(long n) {
+        long charge = Math.min(n, limit);
+        if (used > 0 && used + charge > limit) return -1;
+        used += charge;
+        return charge;
+    }
+
+    /** Waits until {@code n} bytes are free; returns the charge. */
+    synchronized long acquire(long n) throws InterruptedException {
+        long charge = Math.min(n, limit);
+        while (used > 0 && used + charge > limit) wait();
+        used += charge;
+        return charge;
+    }
+
+    synchronized void release(long charge) {
+        used -= charge;
+        notifyAll();
+    }
+}
@@ -0,0 +1,224 @@
+package com.arda.bctransform;
+
+import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import org.objectweb.asm.ClassReader;
+
+public final class ClassHierarchy {
+
+    static final String OBJECT = "java/lang/Object";
+
+    private static final int HEADER_PREFIX = 4096;
+    private static final Node MISSING = new Node(null, null, false);
+
+    private final ConcurrentHashMap<String, Node> nodes =
+        new ConcurrentHashMap<>();
+    private final Set<String> unresolved = ConcurrentHashMap.newKeySet();
+    private final ClassLoader resources;
+
+    public ClassHierarchy(ClassLoader resources) {
+        this.resources = resources;
+    }
+
+    public static ClassHierarchy forTool() {
+        return new ClassHierarchy(ClassLoader.getPlatformClassLoader());
+    }
+
+    public void indexJar(ZipArchive jar) throws IOException {
+        for (ZipArchive.Entry e : jar.entries()) {
+            if (e.isDirectory() || !e.getName().endsWith(".class")) continue;
+            ClassReader cr = readHeader(jar, e);
+            if (cr != null) add(cr);
+        }
+    }
+
+    public void indexClasspath(List<Path> classpath) throws IOException {
+        for (Path p : classpath) {
+            if (Files.isDirectory(p)) {
+                indexDirectory(p);
+            } else if (Files.isRegularFile(p)) {
+                try (ZipArchive jar = ZipArchive.open(p)) {
+                    indexJar(jar);
+                }
+            }
+        }
+    }
+
+    /** Reads one classpath jar into a snapshot that can be added later. */
+    static Snapshot snapshot(Path jar) throws IOException {
+        ClassHierarchy h = new ClassHierarchy(null);
+        try (ZipArchive z = ZipArchive.open(jar)) {
+            h.indexJar(z);
+        }
+        return new Snapshot(new HashMap<>(h.nodes));
+    }
+
+    /** Adds a snapshot's types; like indexing, earlier types win. */
+    void addAll(Snapshot s) {
+        for (Map.Entry<String, Node> e : s.nodes.entrySet()) {
+            nodes.putIfAbsent(e.getKey(), e.getValue());
+        }
+    }
+
+    public void add(ClassReader cr) {
+        String name = cr.getClassName().intern();
+        nodes.putIfAbsent(name, nodeOf(cr));
+    }
+
+    /** Records a class that was recompiled, replacing what was indexed. */
+    void replace(ClassReader cr) {
+        nodes.put(cr.getClassName().intern(), nodeOf(cr));
+    }
+
+    /**
+     * Forgets a class whose file was deleted. Later lookups of it resolve
+     * through the loader again, or are reported as unresolved.
+     */
+    void remove(String name) {
+        nodes.remove(name);
+    }
+
+    public String getCommonSuperClass(String type1, String type2) {
+        if (type1.equals(type2)) return type1;
+        if (isAssignableFrom(type1, type2)) return type1;
+        if (isAssignableFrom(type2, type1)) return type2;
+        if (isInterface(type1) || isInterface(type2)) return OBJECT;
+        String t = type1;
+        do {
+            t = node(t).superName;
+            if (t == null) return OBJECT;
+        } while (!isAssignableFrom(t, type2));
+        return t;
+    }
+
+    public boolean isInterface(String type) {
+        return node(type).isInterface;
+    }
+
+    public boolean isAssignableFrom(String target, String type) {
+        if (OBJECT.equals(target)) return true;
+        ArrayDeque<String> work = new ArrayDeque<>();
+        Set<String> seen = new HashSet<>();
+        work.add(type);
+        while (!work.isEmpty()) {
+            String t = work.poll();
+            if (t.equals(target)) return true;
+            if (!seen.add(t)) continue;
+            Node n = node(t);
+            if (n.superName != null) work.add(n.superName);
+            if (n.interfaces != null) {
+                for (String i : n.interfaces) work.add(i);
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public List<String> unresolvedTypes() {
+        List<String> out = new ArrayList<>(unresolved);
+        Collections.sort(out);
+        return out;
+    }
+
+    private Node node(String type) {
+        Node n = nodes.get(type);
+        if (n == null) {
+            n = resolve(type);
+            if (n == MISSING) unresolved.add(type);
+            Node prev = nodes.putIfAbsent(type.intern(), n);
+            if (prev != null) n = prev;
+        }
+        return n;
+    }
+
+    private Node resolve(String type) {
+        if (resources == null) return MISSING;
+        try (InputStream in = resources.getResourceAsStream(type + ".class")) {
+            if (in == null) return MISSING;
+            return nodeOf(new ClassReader(in));
+        } catch (IOException | RuntimeException e) {
+            return MISSING;
+        }
+    }
+
+    private void indexDirectory(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                if (!f.toString().endsWith(".class")) continue;
+                add(new ClassReader(Files.readAllBytes(f)));
+            }
+        }
+    }
+
+    static ClassReader readHeader(ZipArchive jar, ZipArchive.Entry e)
+        throws IOException {
+        if (e.getSize() > HEADER_PREFIX) {
+            try {
+                ClassReader cr = new ClassReader(jar.read(e, HEADER_PREFIX));
+                cr.getSuperName();
+                cr.getInterfaces();
+                return cr;
+            } catch (RuntimeException truncated) {
+                // constant pool extends past the prefix; fall through
+            }
+        }
+        try {
+            return new ClassReader(jar.read(e));
+        } catch (RuntimeException malformed) {
+            return null;
+        }
+    }
+
+    private static Node nodeOf(ClassReader cr) {
+        String superName = cr.getSuperName();
+        String[] interfaces = cr.getInterfaces();
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = interfaces[i].intern();
+        }
+        return new Node(
+            superName == null ? null : superName.intern(),
+            interfaces.length == 0 ? null : interfaces,
+            (cr.getAccess() & ACC_INTERFACE) != 0
+        );
+    }
+
+    /** Types read from one jar, immutable once built. */
+    static final class Snapshot {
+
+        private final Map<String, Node> nodes;
+
+        private Snapshot(Map<String, Node> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    private static final class Node {
+
+        final String superName;
+        final String[] interfaces;
+        final boolean isInterface;
+
+        Node(String superName, String[] interfaces, boolean isInterface) {
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.isInterface = isInterface;
+        }
+    }
+}
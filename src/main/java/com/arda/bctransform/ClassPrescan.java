@@ -0,0 +1,134 @@
+package com.arda.bctransform;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+
+public final class ClassPrescan extends ClassVisitor {
+
+    private final TransformContext ctx;
+    private final List<Candidate> candidates = new ArrayList<>();
+
+    private ClassPrescan(TransformContext ctx) {
+        super(ASM9);
+        this.ctx = ctx;
+    }
+
+    /**
+     * Returns the methods of {@code cr} to instrument. With cost filtering
+     * on, method bodies are read as well and selected methods that are too
+     * cheap to be worth a probe are left out and listed in {@code rep}
+     * with the reason. With a profile, methods it does not select are
+     * left out the same way.
+     */
+    public static Set<String> selectedMethods(
+        ClassReader cr,
+        TransformContext ctx,
+        TransformReport rep
+    ) {
+        ClassPrescan scan = new ClassPrescan(ctx);
+        int flags = ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+        if (!MethodCost.enabled(ctx.cfg)) flags |= ClassReader.SKIP_CODE;
+        cr.accept(scan, flags);
+        Set<String> out = new LinkedHashSet<>();
+        for (Candidate c : scan.candidates) {
+            if (!scan.eligible(c)) continue;
+            String reason = c.cost == null
+                ? null
+                : c.cost.skipReason(ctx.cfg, c.name, c.desc);
+            Profile profile = ctx.selectors.profile();
+            if (reason == null && profile != null) {
+                Profile.Decision d = profile.decision(
+                    cr.getClassName(),
+                    c.name,
+                    c.desc
+                );
+                if (d == null) reason = "profile: not called";
+                else if (!d.selected) reason = d.reason;
+            }
+            if (reason == null) {
+                out.add(c.name + c.desc);
+                continue;
+            }
+            rep.skippedMethods++;
+            rep.skipped.add(
+                new TransformReport.SkippedMethod(
+                    cr.getClassName().replace('/', '.'),
+                    c.name,
+                    c.desc,
+                    reason
+                )
+            );
+        }
+        return out;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(
+        int access,
+        String name,
+        String descriptor,
+        String signature,
+        String[] exceptions
+    ) {
+        Candidate c = new Candidate(access, name, descriptor);
+        candidates.add(c);
+        if (!selectable(c)) return null;
+        MethodVisitor mv = null;
+        if (ctx.cfg.requireAnnotationDesc != null) {
+            mv = new MethodVisitor(ASM9) {
+                @Override
+                public AnnotationVisitor visitAnnotation(
+                    String desc,
+                    boolean visible
+                ) {
+                    if (ctx.cfg.requireAnnotationDesc.equals(desc)) {
+                        c.hasRequiredAnnotation = true;
+                    }
+                    return null;
+                }
+            };
+        }
+        if (MethodCost.enabled(ctx.cfg)) {
+            c.cost = new MethodCost(mv);
+            mv = c.cost;
+        }
+        return mv;
+    }
+
+    private boolean selectable(Candidate c) {
+        if ((c.access & (ACC_ABSTRACT | ACC_NATIVE)) != 0) return false;
+        if (c.name.equals("<init>") || c.name.equals("<clinit>")) return false;
+        if (!ctx.selectors.methodSelected(c.name, c.desc)) return false;
+        return ctx.cfg.entryLog || ctx.cfg.timing;
+    }
+
+    private boolean eligible(Candidate c) {
+        if (!selectable(c)) return false;
+        return (
+            ctx.cfg.requireAnnotationDesc == null || c.hasRequiredAnnotation
+        );
+    }
+
+    private static final class Candidate {
+
+        final int access;
+        final String name;
+        final String desc;
+        boolean hasRequiredAnnotation = false;
+        MethodCost cost = null;
+
+        Candidate(int access, String name, String desc) {
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+        }
+    }
+}
@@ -1,32 +1,102 @@
 package com.arda.bctransform;
 
-import static org.objectweb.asm.Opcodes.ASM9;
+import static org.objectweb.asm.Opcodes.*;
 
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 
 public final class ClassTransformVisitor extends ClassVisitor {
 
+    static final String BASE_FIELD = "$bc$base";
+    static final String SAMPLE_FIELD = "$bc$sample";
+    static final String LOGGER_FIELD = "$bc$log";
+    // sample counters: SAMPLE_STRIPES rows picked by thread id, one int
+    // per method in each row and a 64-byte line of padding between rows,
+    // so threads in different rows never write the same line
+    static final int SAMPLE_STRIPES = 8;
+    static final int SAMPLE_PAD = 16;
+    static final String REGISTRY =
+        "com/arda/bctransform/runtime/MethodRegistry";
+    static final String METRICS = "com/arda/bctransform/runtime/Metrics";
+    static final String EVENT_LOG = "com/arda/bctransform/runtime/EventLog";
+    static final String SAMPLER = "com/arda/bctransform/runtime/Sampler";
+    static final String SWITCHES = "com/arda/bctransform/runtime/Switches";
+    static final String STDOUT_SINK =
+        "com/arda/bctransform/runtime/StdoutSink";
+    static final String JFR_SINK = "com/arda/bctransform/runtime/JfrSink";
+    static final String JFR_EVENT =
+        "com/arda/bctransform/runtime/MethodEvent";
+
     private final Config cfg;
-    private final Pattern includeMethod;
+    private final Selectors selectors;
+    private final List<String> selected;
+    private final Map<String, Integer> probeIndexes = new HashMap<>();
     private final TransformReport rep;
 
     private String ownerInternal;
+    private boolean isInterface;
+    private int[] sampleRates;
+    private boolean sampling = false;
+    private int fixedBaseId = -1;
+    private boolean addMembers = true;
+    private boolean sawClinit = false;
     private int classTransformed = 0;
 
     public ClassTransformVisitor(
         ClassVisitor cv,
         Config cfg,
-        Pattern includeMethod,
+        Selectors selectors,
+        Set<String> selected,
         TransformReport rep
     ) {
         super(ASM9, cv);
         this.cfg = cfg;
-        this.includeMethod = includeMethod;
+        this.selectors = selectors;
+        this.selected = new ArrayList<>(selected);
+        for (String sig : this.selected) {
+            probeIndexes.put(sig, probeIndexes.size());
+        }
         this.rep = rep;
     }
 
+    /**
+     * Uses method ids already registered by the caller (agent mode, where
+     * the registry lives in the same JVM) instead of registering them from
+     * {@code <clinit>}.
+     */
+    ClassTransformVisitor fixedMethodIds(int baseId) {
+        this.fixedBaseId = baseId;
+        return this;
+    }
+
+    /**
+     * Keeps the class schema unchanged, as retransformation requires: no
+     * synthetic fields or {@code <clinit>}. Needs {@link #fixedMethodIds}.
+     */
+    ClassTransformVisitor withoutNewMembers() {
+        this.addMembers = false;
+        return this;
+    }
+
+    int fixedBaseId() {
+        return fixedBaseId;
+    }
+
+    /** Ints per stripe of the sample counter array, padding included. */
+    int sampleRowLength() {
+        int n = selected.size();
+        return ((n + SAMPLE_PAD - 1) / SAMPLE_PAD + 1) * SAMPLE_PAD;
+    }
+
+    boolean addsMembers() {
+        return addMembers;
+    }
+
     @Override
     public void visit(
         int version,
@@ -37,7 +107,47 @@ public final class ClassTransformVisitor extends ClassVisitor {
         String[] interfaces
     ) {
         this.ownerInternal = name;
+        this.isInterface = (access & ACC_INTERFACE) != 0;
+        this.sampleRates = new int[selected.size()];
+        for (int i = 0; i < sampleRates.length; i++) {
+            String sig = selected.get(i);
+            int paren = sig.indexOf('(');
+            sampleRates[i] = selectors.sampleRate(
+                name,
+                sig.substring(0, paren),
+                sig.substring(paren)
+            );
+            if (sampleRates[i] > 1) sampling = true;
+        }
         super.visit(version, access, name, signature, superName, interfaces);
+        if (!addMembers) return;
+        if (needsBaseField()) {
+            super.visitField(
+                staticFieldAccess(),
+                BASE_FIELD,
+                "I",
+                null,
+                null
+            ).visitEnd();
+        }
+        if (needsLoggerField(cfg)) {
+            super.visitField(
+                staticFieldAccess(),
+                LOGGER_FIELD,
+                "Lorg/slf4j/Logger;",
+                null,
+                null
+            ).visitEnd();
+        }
+        if (sampling) {
+            super.visitField(
+                staticFieldAccess(),
+                SAMPLE_FIELD,
+                "[I",
+                null,
+                null
+            ).visitEnd();
+        }
     }
 
     @Override
@@ -55,23 +165,212 @@ public final class ClassTransformVisitor extends ClassVisitor {
             signature,
             exceptions
         );
+        if (mv != null && "<clinit>".equals(name) && needsStaticInit()) {
+            sawClinit = true;
+            return new MethodVisitor(ASM9, mv) {
+                @Override
+                public void visitCode() {
+                    super.visitCode();
+                    emitStaticInit(mv);
+                }
+            };
+        }
+        Integer probeIndex = probeIndexes.get(name + descriptor);
+        if (mv == null || probeIndex == null) return mv;
         return new MethodTransformAdapter(
             mv,
             access,
             ownerInternal,
             name,
             descriptor,
+            probeIndex,
+            sampleRates[probeIndex],
             cfg,
-            includeMethod,
             rep,
             this
         );
     }
 
+    @Override
+    public void visitEnd() {
+        if (needsStaticInit() && !sawClinit) {
+            MethodVisitor mv = super.visitMethod(
+                ACC_STATIC | ACC_SYNTHETIC,
+                "<clinit>",
+                "()V",
+                null,
+                null
+            );
+            mv.visitCode();
+            emitStaticInit(mv);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        super.visitEnd();
+    }
+
+    /** Why the profile selected a method, or null without a profile. */
+    String selectionReason(String name, String desc) {
+        return selectionReason(selectors, ownerInternal, name, desc);
+    }
+
+    private static String selectionReason(
+        Selectors selectors,
+        String owner,
+        String name,
+        String desc
+    ) {
+        Profile p = selectors.profile();
+        if (p == null) return null;
+        Profile.Decision d = p.decision(owner, name, desc);
+        return d == null ? null : d.reason;
+    }
+
+    /**
+     * Records in {@code rep} what transforming {@code owner} with these
+     * {@code selected} methods would report, without generating code:
+     * every selected method gets a probe, so this matches what the
+     * adapters record one by one. Used by dry runs.
+     */
+    static void recordPlanned(
+        String owner,
+        Set<String> selected,
+        Config cfg,
+        Selectors selectors,
+        TransformReport rep
+    ) {
+        if (selected.isEmpty()) return;
+        rep.transformedClasses++;
+        for (String sig : selected) {
+            int paren = sig.indexOf('(');
+            String name = sig.substring(0, paren);
+            String desc = sig.substring(paren);
+            rep.transformedMethods++;
+            TransformReport.TransformedMethod m =
+                new TransformReport.TransformedMethod(
+                    owner.replace('/', '.'),
+                    name,
+                    desc,
+                    cfg.entryLog,
+                    cfg.timing,
+                    selectors.sampleRate(owner, name, desc)
+                );
+            m.reason = selectionReason(selectors, owner, name, desc);
+            rep.methods.add(m);
+        }
+    }
+
     void markClassTransformed() {
         if (classTransformed == 0) {
             rep.transformedClasses++;
             classTransformed = 1;
         }
     }
+
+    static boolean needsMethodIds(Config cfg) {
+        return runtimeSink(cfg) != null || cfg.switchable;
+    }
+
+    /** Probes call into the runtime package, so it must be on hand. */
+    static boolean needsRuntime(Config cfg) {
+        return needsMethodIds(cfg) || jfrLogger(cfg);
+    }
+
+    static boolean jfrLogger(Config cfg) {
+        return runtimeSink(cfg) == null && "jfr".equalsIgnoreCase(cfg.logger);
+    }
+
+    static boolean needsLoggerField(Config cfg) {
+        return runtimeSink(cfg) == null && "slf4j".equalsIgnoreCase(cfg.logger);
+    }
+
+    static String runtimeSink(Config cfg) {
+        if ("metrics".equalsIgnoreCase(cfg.sink)) return METRICS;
+        if ("async".equalsIgnoreCase(cfg.sink)) return EVENT_LOG;
+        if ("stdout".equalsIgnoreCase(cfg.sink)) return STDOUT_SINK;
+        return null;
+    }
+
+    private boolean needsBaseField() {
+        return needsMethodIds(cfg) && fixedBaseId < 0;
+    }
+
+    private boolean needsStaticInit() {
+        if (!addMembers) return false;
+        return needsBaseField() || needsLoggerField(cfg) || sampling;
+    }
+
+    private int staticFieldAccess() {
+        return isInterface
+            ? ACC_PUBLIC | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC
+            : ACC_PRIVATE | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC;
+    }
+
+    private void emitStaticInit(MethodVisitor mv) {
+        if (needsBaseField()) {
+            mv.visitLdcInsn(ownerInternal.replace('/', '.'));
+            pushInt(mv, selected.size());
+            mv.visitTypeInsn(ANEWARRAY, "java/lang/String");
+            for (int i = 0; i < selected.size(); i++) {
+                mv.visitInsn(DUP);
+                pushInt(mv, i);
+                mv.visitLdcInsn(selected.get(i));
+                mv.visitInsn(AASTORE);
+            }
+            mv.visitMethodInsn(
+                INVOKESTATIC,
+                cfg.switchable ? SWITCHES : REGISTRY,
+                "register",
+                "(Ljava/lang/String;[Ljava/lang/String;)I",
+                false
+            );
+            mv.visitFieldInsn(PUTSTATIC, ownerInternal, BASE_FIELD, "I");
+            if (STDOUT_SINK.equals(runtimeSink(cfg))) {
+                mv.visitFieldInsn(GETSTATIC, ownerInternal, BASE_FIELD, "I");
+                pushInt(mv, selected.size());
+                mv.visitLdcInsn(cfg.logPrefix);
+                mv.visitMethodInsn(
+                    INVOKESTATIC,
+                    STDOUT_SINK,
+                    "define",
+                    "(IILjava/lang/String;)V",
+                    false
+                );
+            }
+        }
+        if (needsLoggerField(cfg)) {
+            mv.visitLdcInsn(ownerInternal);
+            mv.visitMethodInsn(
+                INVOKESTATIC,
+                "org/slf4j/LoggerFactory",
+                "getLogger",
+                "(Ljava/lang/String;)Lorg/slf4j/Logger;",
+                false
+            );
+            mv.visitFieldInsn(
+                PUTSTATIC,
+                ownerInternal,
+                LOGGER_FIELD,
+                "Lorg/slf4j/Logger;"
+            );
+        }
+        if (sampling) {
+            pushInt(mv, SAMPLE_STRIPES * sampleRowLength());
+            mv.visitIntInsn(NEWARRAY, T_INT);
+            mv.visitFieldInsn(PUTSTATIC, ownerInternal, SAMPLE_FIELD, "[I");
+        }
+    }
+
+    static void pushInt(MethodVisitor mv, int v) {
+        if (v >= -1 && v <= 5) {
+            mv.visitInsn(ICONST_0 + v);
+        } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, v);
+        } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, v);
+        } else {
+            mv.visitLdcInsn(v);
+        }
+    }
 }
@@ -9,8 +9,13 @@ public final class Config {
     public boolean entryLog = false;
     public boolean timing = false;
     public boolean dryRun = false;
+    public boolean stats = false;
+    public int threads = Runtime.getRuntime().availableProcessors();
 
     public String logger = "stdout";
+    public String logLevel = "info";
+    public String sink = "log";
+    public boolean embedRuntime = true;
     public String logPrefix = "[BC]";
 
     public String includeClassRegex = null;
@@ -21,5 +26,52 @@ public final class Config {
 
     public String requireAnnotationDesc = null;
 
+    public int minInstructions = 0;
+    public boolean skipTrivialAccessors = false;
+
+    public Path profilePath = null;
+    public int profileTopN = 0;
+    public long profileMinMeanNs = 0;
+    public long profileHotCalls = 0;
+    public int profileHotSampleRate = 100;
+
+    public boolean switchable = false;
+    public int sampleRate = 1;
+    public List<SampleRule> sampleRules = new ArrayList<>();
+
+    public List<Path> classpath = new ArrayList<>();
+
     public Path reportPath = null;
+    public String reportFormat = "json";
+
+    public Path cacheDir = null;
+    public long cacheMaxBytes = 512L * 1024 * 1024;
+
+    public boolean nestedJars = true;
+    public long nestedMemoryBytes = 64L * 1024 * 1024;
+
+    /** Entry bytes between reading and writing at once; 0 is unbounded. */
+    public long maxInflightBytes = 0;
+
+    public static final class SampleRule {
+
+        public String classRegex = null;
+        public String methodRegex = null;
+        public int rate = 1;
+
+        @Override
+        public String toString() {
+            return classRegex + " " + methodRegex + " 1/" + rate;
+        }
+    }
+
+    static int parseSampleRate(String spec) {
+        String s = spec.trim();
+        if (s.startsWith("1/")) s = s.substring(2);
+        int n = Integer.parseInt(s.trim());
+        if (n < 1) throw new IllegalArgumentException(
+            "Sample rate must be 1/N with N >= 1: " + spec
+        );
+        return n;
+    }
 }
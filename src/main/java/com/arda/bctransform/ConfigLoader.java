@@ -19,7 +19,13 @@ public final class ConfigLoader {
             cfg.entryLog = getBool(m, "entryLog", cfg.entryLog);
             cfg.timing = getBool(m, "timing", cfg.timing);
             cfg.logger = getStr(m, "logger", cfg.logger);
+            cfg.logLevel = getStr(m, "logLevel", cfg.logLevel);
+            cfg.sink = getStr(m, "sink", cfg.sink);
+            cfg.embedRuntime = getBool(m, "embedRuntime", cfg.embedRuntime);
             cfg.logPrefix = getStr(m, "logPrefix", cfg.logPrefix);
+            cfg.threads = getInt(m, "threads", cfg.threads);
+            cfg.stats = getBool(m, "stats", cfg.stats);
+            cfg.reportFormat = getStr(m, "reportFormat", cfg.reportFormat);
 
             cfg.includeClassRegex = getStrOrNull(m, "includeClassRegex");
             cfg.includeMethodRegex = getStrOrNull(m, "includeMethodRegex");
@@ -28,6 +34,22 @@ public final class ConfigLoader {
                 "requireAnnotationDesc"
             );
 
+            cfg.switchable = getBool(m, "switchable", cfg.switchable);
+            String rate = getStrOrNull(m, "sampleRate");
+            if (rate != null) cfg.sampleRate = Config.parseSampleRate(rate);
+            Object sampling = m.get("sampling");
+            if (sampling instanceof List) {
+                for (Object o : (List<?>) sampling) {
+                    if (!(o instanceof Map)) continue;
+                    Map<?, ?> r = (Map<?, ?>) o;
+                    Config.SampleRule rule = new Config.SampleRule();
+                    rule.classRegex = getStrOrNull(r, "classRegex");
+                    rule.methodRegex = getStrOrNull(r, "methodRegex");
+                    rule.rate = Config.parseSampleRate(getStr(r, "rate", "1"));
+                    cfg.sampleRules.add(rule);
+                }
+            }
+
             cfg.excludeClassRegex = getStrList(
                 m,
                 "excludeClassRegex",
@@ -39,6 +61,59 @@ public final class ConfigLoader {
                 cfg.excludeMethodRegex
             );
 
+            String cacheDir = getStrOrNull(m, "cacheDir");
+            if (cacheDir != null) cfg.cacheDir = path.resolveSibling(cacheDir);
+            cfg.cacheMaxBytes =
+                getInt(m, "cacheMaxMb", (int) (cfg.cacheMaxBytes >> 20)) *
+                1024L *
+                1024L;
+            cfg.maxInflightBytes = getLong(
+                m,
+                "maxInflightBytes",
+                cfg.maxInflightBytes
+            );
+
+            cfg.minInstructions = getInt(
+                m,
+                "minInstructions",
+                cfg.minInstructions
+            );
+            cfg.skipTrivialAccessors = getBool(
+                m,
+                "skipTrivialAccessors",
+                cfg.skipTrivialAccessors
+            );
+            String profile = getStrOrNull(m, "profile");
+            if (profile != null) cfg.profilePath = path.resolveSibling(profile);
+            cfg.profileTopN = getInt(m, "profileTopN", cfg.profileTopN);
+            cfg.profileMinMeanNs = getLong(
+                m,
+                "profileMinMeanNs",
+                cfg.profileMinMeanNs
+            );
+            cfg.profileHotCalls = getLong(
+                m,
+                "profileHotCalls",
+                cfg.profileHotCalls
+            );
+            String hotRate = getStrOrNull(m, "profileHotSampleRate");
+            if (hotRate != null) {
+                cfg.profileHotSampleRate = Config.parseSampleRate(hotRate);
+            }
+            cfg.nestedJars = getBool(m, "nestedJars", cfg.nestedJars);
+            cfg.nestedMemoryBytes =
+                getInt(
+                    m,
+                    "nestedMemoryMb",
+                    (int) (cfg.nestedMemoryBytes >> 20)
+                ) *
+                1024L *
+                1024L;
+
+            for (String cp : getStrList(m, "classpath", List.of())) {
+                cfg.classpath.add(path.resolveSibling(cp));
+            }
+
             return cfg;
         }
     }
@@ -50,6 +125,20 @@ public final class ConfigLoader {
         return d;
     }
 
+    private static int getInt(Map<?, ?> m, String k, int d) {
+        Object v = m.get(k);
+        if (v instanceof Number) return ((Number) v).intValue();
+        if (v instanceof String) return Integer.parseInt((String) v);
+        return d;
+    }
+
+    private static long getLong(Map<?, ?> m, String k, long d) {
+        Object v = m.get(k);
+        if (v instanceof Number) return ((Number) v).longValue();
+        if (v instanceof String) return Long.parseLong((String) v);
+        return d;
+    }
+
     private static String getStr(Map<?, ?> m, String k, String d) {
         Object v = m.get(k);
         return v == null ? d : String.valueOf(v);
@@ -0,0 +1,298 @@
+package com.arda.bctransform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * Resident transformer for builds that call bctransform many times. It
+ * listens on a loopback port and runs each client's command line in this
+ * JVM, so jobs after the first skip JVM startup, class loading and JIT
+ * warm-up, and share the {@link Resident} state. The port and a random
+ * token go to a state file readable only by its owner; a connection that
+ * does not present the token is refused. At most {@code --max-jobs} jobs
+ * run at once and the rest wait; the daemon exits after
+ * {@code --idle-timeout} seconds without a connection.
+ *
+ * <p>Protocol, all in {@link DataOutputStream} encoding: the client sends
+ * {@link #VERSION}, the token, a request kind, its working directory and
+ * its arguments; the daemon answers with output frames (kind, length,
+ * bytes) and ends with an exit frame carrying the exit code.
+ */
+@Command(
+    name = "daemon",
+    mixinStandardHelpOptions = true,
+    version = Main.VERSION,
+    description = "Keep a warm transformer resident for 'bctransform client'"
+)
+final class Daemon implements Callable<Integer> {
+
+    static final int VERSION = 1;
+    static final String FILE_PROPERTY = "bctransform.daemon.file";
+
+    static final byte RUN = 1;
+    static final byte STOP = 2;
+
+    static final byte EXIT = 0;
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+
+    private static final int RESIDENT_ENTRIES = 256;
+    private static final int POLL_MS = 1000;
+
+    @Option(
+        names = { "--port" },
+        description = "Loopback port to listen on (default: any free port)"
+    )
+    int port = 0;
+
+    @Option(
+        names = { "--state-file" },
+        description = "Where to write the port and token (default: ~/.bctransform/daemon)"
+    )
+    Path stateFile = stateFile();
+
+    @Option(
+        names = { "--max-jobs" },
+        description = "Jobs that may run at once; others wait (default 2)"
+    )
+    int maxJobs = 2;
+
+    @Option(
+        names = { "--idle-timeout" },
+        description = "Exit after this many seconds without a job; 0 never (default 1800)"
+    )
+    long idleTimeout = 1800;
+
+    @Option(
+        names = { "--stop" },
+        description = "Stop the running daemon and exit"
+    )
+    boolean stop;
+
+    private final Resident resident = new Resident(RESIDENT_ENTRIES);
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile long lastUsed = System.nanoTime();
+    private volatile boolean stopping = false;
+
+    static Path stateFile() {
+        String p = System.getProperty(FILE_PROPERTY);
+        if (p != null) return Path.of(p);
+        return Path.of(
+            System.getProperty("user.home"),
+            ".bctransform",
+            "daemon"
+        );
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        if (stop) return DaemonClient.stop(stateFile);
+        if (maxJobs < 1) {
+            System.err.println("--max-jobs must be at least 1");
+            return 2;
+        }
+        byte[] token = new byte[32];
+        new SecureRandom().nextBytes(token);
+        String secret = hex(token);
+        Semaphore slots = new Semaphore(maxJobs, true);
+        ExecutorService handlers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "bctransform-daemon-job");
+            t.setDaemon(true);
+            return t;
+        });
+        try (
+            ServerSocket server = new ServerSocket(
+                port,
+                50,
+                InetAddress.getLoopbackAddress()
+            )
+        ) {
+            server.setSoTimeout(POLL_MS);
+            writeState(stateFile, server.getLocalPort(), secret);
+            System.out.println(
+                "bctransform daemon listening on " +
+                server.getLocalSocketAddress() +
+                ", state in " +
+                stateFile
+            );
+            while (!stopping) {
+                Socket s;
+                try {
+                    s = server.accept();
+                } catch (SocketTimeoutException e) {
+                    if (idle()) break;
+                    continue;
+                }
+                active.incrementAndGet();
+                handlers.execute(() -> serve(s, secret, slots));
+            }
+        } finally {
+            Files.deleteIfExists(stateFile);
+            handlers.shutdown();
+            // let running jobs finish writing their output
+            handlers.awaitTermination(1, TimeUnit.HOURS);
+        }
+        System.out.println("bctransform daemon stopped");
+        return 0;
+    }
+
+    private boolean idle() {
+        if (idleTimeout <= 0 || active.get() > 0) return false;
+        long idleNs = System.nanoTime() - lastUsed;
+        return idleNs >= TimeUnit.SECONDS.toNanos(idleTimeout);
+    }
+
+    private void serve(Socket socket, String secret, Semaphore slots) {
+        try (
+            Socket s = socket;
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(s.getInputStream())
+            );
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(s.getOutputStream())
+            )
+        ) {
+            int code = handle(in, out, secret, slots);
+            synchronized (out) {
+                out.writeByte(EXIT);
+                out.writeInt(code);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away; nothing to report to
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lastUsed = System.nanoTime();
+            active.decrementAndGet();
+        }
+    }
+
+    private int handle(
+        DataInputStream in,
+        DataOutputStream out,
+        String secret,
+        Semaphore slots
+    ) throws IOException, InterruptedException {
+        PrintStream stdout = frames(out, STDOUT);
+        PrintStream stderr = frames(out, STDERR);
+        int version = in.readInt();
+        String token = in.readUTF();
+        if (
+            !MessageDigest.isEqual(
+                token.getBytes(StandardCharsets.UTF_8),
+                secret.getBytes(StandardCharsets.UTF_8)
+            )
+        ) {
+            stderr.println("bctransform daemon: bad token");
+            stderr.flush();
+            return 2;
+        }
+        if (version != VERSION) {
+            stderr.println(
+                "bctransform daemon: client protocol " +
+                version +
+                ", daemon " +
+                VERSION
+            );
+            stderr.flush();
+            return 2;
+        }
+        byte kind = in.readByte();
+        if (kind == STOP) {
+            stopping = true;
+            stdout.println("bctransform daemon stopping");
+            stdout.flush();
+            return 0;
+        }
+        Path cwd = Path.of(in.readUTF());
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) args[i] = in.readUTF();
+
+        slots.acquire();
+        try {
+            return Main.run(args, cwd, stdout, stderr, resident);
+        } finally {
+            slots.release();
+            stdout.flush();
+            stderr.flush();
+        }
+    }
+
+    /** A stream that forwards its bytes as {@code kind} frames. */
+    private static PrintStream frames(DataOutputStream out, byte kind) {
+        OutputStream frame = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return;
+                synchronized (out) {
+                    out.writeByte(kind);
+                    out.writeInt(len);
+                    out.write(b, off, len);
+                    out.flush();
+                }
+            }
+        };
+        return new PrintStream(
+            new BufferedOutputStream(frame),
+            false,
+            StandardCharsets.UTF_8
+        );
+    }
+
+    private static void writeState(Path file, int port, String token)
+        throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, "daemon", ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(
+                    tmp,
+                    PosixFilePermissions.fromString("rw-------")
+                );
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system; rely on the directory's ACLs
+            }
+            Files.writeString(tmp, port + "\n" + token + "\n");
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte x : b) sb.append(String.format("%02x", x));
+        return sb.toString();
+    }
+}
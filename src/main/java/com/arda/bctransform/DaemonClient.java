@@ -0,0 +1,111 @@
+package com.arda.bctransform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Thin client for {@link Daemon}: forwards its arguments and working
+ * directory and copies the job's output and exit code back. It only uses
+ * JDK classes, so starting it costs little more than starting a JVM. When
+ * no daemon is running the command runs in this process instead.
+ */
+final class DaemonClient {
+
+    static int run(String[] args) {
+        Path cwd = Path.of("").toAbsolutePath();
+        try {
+            return send(Daemon.stateFile(), Daemon.RUN, cwd, args);
+        } catch (NoSuchFileException | ConnectException e) {
+            System.err.println(
+                "[bctransform] no daemon running; transforming in-process"
+            );
+        } catch (IOException e) {
+            System.err.println("[bctransform] daemon failed: " + e);
+            return 1;
+        }
+        return Main.run(args, cwd, System.out, System.err, Resident.NONE);
+    }
+
+    static int stop(Path stateFile) {
+        try {
+            return send(stateFile, Daemon.STOP, null, new String[0]);
+        } catch (NoSuchFileException | ConnectException e) {
+            System.err.println("No daemon running");
+            return 1;
+        } catch (IOException e) {
+            System.err.println("Cannot stop daemon: " + e);
+            return 1;
+        }
+    }
+
+    private static int send(
+        Path stateFile,
+        byte kind,
+        Path cwd,
+        String[] args
+    ) throws IOException {
+        List<String> state = Files.readAllLines(stateFile);
+        if (state.size() < 2) throw new IOException("bad " + stateFile);
+        int port = Integer.parseInt(state.get(0).trim());
+        String token = state.get(1).trim();
+        try (
+            Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(s.getOutputStream())
+            );
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(s.getInputStream())
+            )
+        ) {
+            out.writeInt(Daemon.VERSION);
+            out.writeUTF(token);
+            out.writeByte(kind);
+            if (kind == Daemon.RUN) {
+                out.writeUTF(cwd.toString());
+                out.writeInt(args.length);
+                for (String a : args) out.writeUTF(a);
+            }
+            out.flush();
+            return receive(in);
+        }
+    }
+
+    private static int receive(DataInputStream in) throws IOException {
+        byte[] buf = new byte[8192];
+        while (true) {
+            byte kind;
+            try {
+                kind = in.readByte();
+            } catch (EOFException e) {
+                throw new IOException("daemon closed the connection", e);
+            }
+            if (kind == Daemon.EXIT) {
+                System.out.flush();
+                System.err.flush();
+                return in.readInt();
+            }
+            PrintStream to = kind == Daemon.STDERR ? System.err : System.out;
+            int len = in.readInt();
+            while (len > 0) {
+                int n = in.read(buf, 0, Math.min(len, buf.length));
+                if (n < 0) throw new EOFException();
+                to.write(buf, 0, n);
+                len -= n;
+            }
+        }
+    }
+
+    private DaemonClient() {}
+}
@@ -0,0 +1,427 @@
+package com.arda.bctransform;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Instruments an exploded class directory, such as a build's
+ * {@code target/classes}, into an output directory: classes go through the
+ * same per-class transform as jar entries, other files are copied, and the
+ * runtime is added at the root. Each file's checksum and each class's
+ * report are kept, so {@link #update} redoes only files whose bytes
+ * changed and replaces only their part of the report; {@link #watch}
+ * drives it from a {@link WatchService}. Classes that merely depend on a
+ * changed supertype are not redone, and a full pass does not remove
+ * output files that are no longer in the input.
+ */
+final class DirectoryTransformer implements Closeable {
+
+    /** Quiet period that ends a burst of compiler writes. */
+    private static final long SETTLE_MS = 50;
+
+    private final Path input;
+    private final Path output;
+    private final Config cfg;
+    private final TransformContext ctx;
+    private final ExecutorService pool;
+    private final Map<String, TransformReport> reports = new TreeMap<>();
+    private final Map<String, Long> checksums = new ConcurrentHashMap<>();
+    // class each indexed file declared, to drop it when the file goes
+    private final Map<Path, String> classNames = new HashMap<>();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private boolean runtimeWritten = false;
+
+    private DirectoryTransformer(
+        Path input,
+        Path output,
+        TransformContext ctx,
+        ExecutorService pool
+    ) {
+        this.input = input;
+        this.output = output;
+        this.cfg = ctx.cfg;
+        this.ctx = ctx;
+        this.pool = pool;
+    }
+
+    static DirectoryTransformer open(
+        Path input,
+        Path output,
+        Config cfg,
+        Resident resident
+    ) throws IOException {
+        Path in = input.toAbsolutePath().normalize();
+        Path out = output.toAbsolutePath().normalize();
+        if (out.startsWith(in)) {
+            throw new IllegalArgumentException(
+                "Output directory " + output + " is inside input " + input
+            );
+        }
+        TransformContext ctx = new TransformContext(
+            cfg,
+            resident.selectors(cfg),
+            ClassHierarchy.forTool(),
+            resident.cache(cfg)
+        );
+        if (instrument(cfg)) {
+            resident.indexClasspath(ctx.hierarchy, cfg.classpath);
+        }
+        if (ctx.cache != null) {
+            ctx.cacheSalt = TransformCache.salt(cfg, ctx.selectors.profile());
+        }
+        ExecutorService pool = cfg.threads > 1
+            ? JarTransformer.newWorkerPool(cfg.threads, "bctransform-worker-")
+            : null;
+        return new DirectoryTransformer(in, out, ctx, pool);
+    }
+
+    /**
+     * Transforms every file under the input directory. Returns how many
+     * output files were written.
+     */
+    int transformAll() throws Exception {
+        long start = System.nanoTime();
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(input)) {
+            files = s
+                .filter(Files::isRegularFile)
+                .sorted()
+                .collect(Collectors.toList());
+        }
+        if (instrument(cfg)) {
+            List<Path> classFiles = new ArrayList<>();
+            List<Future<ClassReader>> headers = new ArrayList<>();
+            for (Path f : files) {
+                if (!f.toString().endsWith(".class")) continue;
+                classFiles.add(f);
+                headers.add(JarTransformer.submit(pool, () -> header(f)));
+            }
+            // the input's own classes win over the classpath's
+            for (int i = 0; i < headers.size(); i++) {
+                ClassReader cr = JarTransformer.await(headers.get(i));
+                if (cr != null) index(classFiles.get(i), cr);
+            }
+            // a full pass after lost watch events may find files gone
+            classNames.entrySet().removeIf(e -> {
+                if (Files.exists(e.getKey())) return false;
+                ctx.hierarchy.remove(e.getValue());
+                return true;
+            });
+        }
+        ctx.metrics.lap(TransformMetrics.READ, start);
+        bytesIn.set(0);
+        bytesOut.set(0);
+        int written = process(files);
+        ctx.metrics.finish(
+            System.nanoTime() - start,
+            bytesIn.get(),
+            bytesOut.get()
+        );
+        return written;
+    }
+
+    /**
+     * Brings the output up to date for files that were created, changed
+     * or deleted. Returns how many output files were written or removed.
+     */
+    int update(Collection<Path> changed) throws Exception {
+        if (instrument(cfg)) {
+            for (Path f : changed) {
+                if (!f.toString().endsWith(".class")) continue;
+                if (!Files.exists(f)) {
+                    String gone = classNames.remove(f);
+                    if (gone != null) ctx.hierarchy.remove(gone);
+                    continue;
+                }
+                ClassReader cr = header(f);
+                if (cr != null) index(f, cr);
+            }
+        }
+        return process(changed);
+    }
+
+    /**
+     * Merges the current per-class reports into {@code into}, which may
+     * already be streaming.
+     */
+    void report(TransformReport into) {
+        for (TransformReport r : reports.values()) into.merge(r);
+        into.unresolvedTypes = ctx.hierarchy.unresolvedTypes();
+        if (ctx.metrics.enabled()) into.metrics = ctx.metrics;
+    }
+
+    /**
+     * Watches the input tree and calls {@link #update} after each burst of
+     * changes, until the thread is interrupted. New directories are
+     * watched as they appear; a lost-events overflow triggers a full pass.
+     */
+    void watch(Listener listener) throws Exception {
+        try (WatchService ws = input.getFileSystem().newWatchService()) {
+            Map<WatchKey, Path> dirs = new HashMap<>();
+            register(ws, input, dirs);
+            while (true) {
+                WatchKey key = ws.take();
+                Set<Path> changed = new TreeSet<>();
+                boolean overflow = false;
+                do {
+                    Path dir = dirs.get(key);
+                    for (WatchEvent<?> e : key.pollEvents()) {
+                        if (e.kind() == OVERFLOW || dir == null) {
+                            overflow = true;
+                            continue;
+                        }
+                        Path p = dir.resolve((Path) e.context());
+                        if (
+                            e.kind() == ENTRY_CREATE &&
+                            Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)
+                        ) {
+                            // files may land before the watch is in place
+                            register(ws, p, dirs);
+                            try (Stream<Path> s = Files.walk(p)) {
+                                s
+                                    .filter(Files::isRegularFile)
+                                    .forEach(changed::add);
+                            }
+                        } else if (!Files.isDirectory(p)) {
+                            changed.add(p);
+                        }
+                    }
+                    if (!key.reset()) dirs.remove(key);
+                    key = ws.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                long start = System.nanoTime();
+                try {
+                    int n = overflow ? transformAll() : update(changed);
+                    if (n > 0) listener.updated(n, System.nanoTime() - start);
+                } catch (Exception e) {
+                    listener.failed(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) pool.shutdownNow();
+    }
+
+    /** Called from {@link #watch} after each burst of changes. */
+    interface Listener {
+        void updated(int files, long nanos) throws Exception;
+
+        void failed(Exception e);
+    }
+
+    /**
+     * Runs the files through the pool and records what each produced. A
+     * file that fails does not stop the others; the first failure is
+     * rethrown once all have finished, and that file keeps no checksum so
+     * its next change retries it.
+     */
+    private int process(Collection<Path> files) throws Exception {
+        List<Future<Outcome>> done = new ArrayList<>();
+        for (Path f : files) {
+            String rel = input
+                .relativize(f)
+                .toString()
+                .replace(File.separatorChar, '/');
+            done.add(JarTransformer.submit(pool, () -> processFile(f, rel)));
+        }
+        Exception failure = null;
+        int written = 0;
+        for (Future<Outcome> d : done) {
+            Outcome o;
+            try {
+                o = JarTransformer.await(d);
+            } catch (Exception e) {
+                if (failure == null) failure = e;
+                continue;
+            }
+            if (o == null) continue;
+            written++;
+            if (o.deleted) reports.remove(o.rel);
+            else if (o.report != null) reports.put(o.rel, o.report);
+        }
+        writeRuntime();
+        if (failure != null) throw failure;
+        return written;
+    }
+
+    /** Writes one file's output, or returns null when it is unchanged. */
+    private Outcome processFile(Path f, String rel) throws Exception {
+        Path target = output.resolve(rel);
+        if (!Files.exists(f)) {
+            checksums.remove(rel);
+            Files.deleteIfExists(target);
+            return new Outcome(rel, null, true);
+        }
+        TransformMetrics metrics = ctx.metrics;
+        long start = metrics.now();
+        byte[] original = Files.readAllBytes(f);
+        bytesIn.addAndGet(original.length);
+        long t = metrics.lap(TransformMetrics.READ, start);
+        long sum = checksum(original);
+        Long prev = checksums.get(rel);
+        if (prev != null && prev == sum && Files.exists(target)) return null;
+
+        boolean isClass = rel.endsWith(".class");
+        TransformReport rep = null;
+        byte[] out = original;
+        if (isClass) {
+            boolean eligible =
+                instrument(cfg) &&
+                JarTransformer.eligibleClass(rel, ctx.selectors);
+            if (eligible && cfg.dryRun) {
+                rep = JarTransformer.dryRunClass(original, ctx);
+            } else if (eligible) {
+                TransformCache.Entry r = JarTransformer.transformClass(
+                    original,
+                    ctx
+                );
+                if (r.bytes != null) out = r.bytes;
+                rep = r.report;
+            } else {
+                rep = new TransformReport();
+            }
+            rep.scannedClasses++;
+            t = metrics.now();
+        }
+        if (!cfg.dryRun) write(target, out);
+        bytesOut.addAndGet(out.length);
+        metrics.lap(TransformMetrics.WRITE, t);
+        if (isClass) {
+            metrics.classDone(rel, metrics.now() - start, original.length);
+        }
+        checksums.put(rel, sum);
+        return new Outcome(rel, rep, false);
+    }
+
+    private void writeRuntime() throws IOException {
+        if (runtimeWritten || cfg.dryRun || !cfg.embedRuntime) return;
+        if (!ClassTransformVisitor.needsRuntime(cfg)) return;
+        int methods = 0;
+        for (TransformReport r : reports.values()) {
+            methods += r.transformedMethods;
+        }
+        if (methods == 0) return;
+        for (Map.Entry<String, byte[]> rt : RuntimeClasses.load().entrySet()) {
+            write(output.resolve(rt.getKey()), rt.getValue());
+        }
+        runtimeWritten = true;
+    }
+
+    /** Replaces {@code target} in one step, so no reader sees half a file. */
+    private static void write(Path target, byte[] data) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(
+            target.getParent(),
+            target.getFileName().toString(),
+            ".tmp"
+        );
+        try {
+            Files.write(tmp, data);
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Records {@code f}'s class in the hierarchy, dropping the class the
+     * file declared before if it was renamed.
+     */
+    private void index(Path f, ClassReader cr) {
+        String name = cr.getClassName();
+        String prev = classNames.put(f, name);
+        if (prev != null && !prev.equals(name)) ctx.hierarchy.remove(prev);
+        ctx.hierarchy.replace(cr);
+    }
+
+    /** The class's header, or null while it is missing or half-written. */
+    private static ClassReader header(Path f) {
+        try {
+            ClassReader cr = new ClassReader(Files.readAllBytes(f));
+            cr.getSuperName();
+            cr.getInterfaces();
+            return cr;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return ((long) data.length << 32) ^ crc.getValue();
+    }
+
+    private static boolean instrument(Config cfg) {
+        return cfg.entryLog || cfg.timing;
+    }
+
+    private static void register(
+        WatchService ws,
+        Path root,
+        Map<WatchKey, Path> dirs
+    ) throws IOException {
+        try (Stream<Path> s = Files.walk(root)) {
+            for (Path d : (Iterable<Path>) s::iterator) {
+                if (!Files.isDirectory(d, LinkOption.NOFOLLOW_LINKS)) continue;
+                dirs.put(
+                    d.register(ws, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE),
+                    d
+                );
+            }
+        }
+    }
+
+    private static final class Outcome {
+
+        final String rel;
+        final TransformReport report;
+        final boolean deleted;
+
+        Outcome(String rel, TransformReport report, boolean deleted) {
+            this.rel = rel;
+            this.report = report;
+            this.deleted = deleted;
+        }
+    }
+}
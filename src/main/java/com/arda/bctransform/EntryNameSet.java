@@ -0,0 +1,63 @@
+package com.arda.bctransform;
+
+import java.util.List;
+
+/**
+ * Names of the entries written so far, for skipping duplicates. Instead of
+ * a {@code HashSet<String>} it keeps an open-addressing table of indexes
+ * into the archive's entry list, so a 400k-entry jar costs a few MB of
+ * {@code int}s and no extra objects; names are compared against the
+ * entries themselves, so there are no false duplicates.
+ */
+final class EntryNameSet {
+
+    private final List<ZipArchive.Entry> entries;
+    // entry index + 1; 0 marks a free slot
+    private int[] slots;
+    private int size = 0;
+
+    EntryNameSet(List<ZipArchive.Entry> entries) {
+        this.entries = entries;
+        int cap = 16;
+        while (cap < entries.size() * 2L && cap < (1 << 30)) cap <<= 1;
+        this.slots = new int[cap];
+    }
+
+    /** Adds entry {@code i}; false when one with its name was added. */
+    boolean add(int i) {
+        String name = entries.get(i).getName();
+        int p = find(slots, name);
+        if (slots[p] != 0) return false;
+        slots[p] = i + 1;
+        if (++size * 2 > slots.length) grow();
+        return true;
+    }
+
+    boolean contains(String name) {
+        return slots[find(slots, name)] != 0;
+    }
+
+    /** The slot holding {@code name}, or the free slot where it would go. */
+    private int find(int[] table, String name) {
+        int mask = table.length - 1;
+        int p = mix(name.hashCode()) & mask;
+        while (table[p] != 0) {
+            if (entries.get(table[p] - 1).getName().equals(name)) return p;
+            p = (p + 1) & mask;
+        }
+        return p;
+    }
+
+    private void grow() {
+        int[] bigger = new int[slots.length * 2];
+        for (int s : slots) {
+            if (s != 0) bigger[find(bigger, entries.get(s - 1).getName())] = s;
+        }
+        slots = bigger;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
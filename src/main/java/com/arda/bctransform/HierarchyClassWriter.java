@@ -0,0 +1,39 @@
+package com.arda.bctransform;
+
+import java.util.Map;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+public final class HierarchyClassWriter extends ClassWriter {
+
+    private final ClassHierarchy hierarchy;
+    private Map<String, String> answers;
+
+    public HierarchyClassWriter(
+        ClassReader cr,
+        int flags,
+        ClassHierarchy hierarchy
+    ) {
+        super(cr, flags);
+        this.hierarchy = hierarchy;
+    }
+
+    /**
+     * Records every common-superclass answer in {@code into}, keyed by
+     * {@link TransformCache#supertypeQuery}, so a cached result can later
+     * be checked against the hierarchy it is reused with.
+     */
+    HierarchyClassWriter recordAnswers(Map<String, String> into) {
+        this.answers = into;
+        return this;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        String common = hierarchy.getCommonSuperClass(type1, type2);
+        if (answers != null) {
+            answers.put(TransformCache.supertypeQuery(type1, type2), common);
+        }
+        return common;
+    }
+}
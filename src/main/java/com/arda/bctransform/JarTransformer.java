@@ -1,173 +1,813 @@
 package com.arda.bctransform;
 
-import java.io.BufferedOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Enumeration;
-import java.util.HashSet;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
-import java.util.jar.Manifest;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 
 public final class JarTransformer {
 
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+    private static final int WINDOW_PER_THREAD = 4;
+    private static final String[] CLASS_ROOTS = {
+        "BOOT-INF/classes/",
+        "WEB-INF/classes/",
+    };
+
     public static TransformReport transformJar(
         Path inputJar,
         Path outputJar,
         Config cfg
+    ) throws Exception {
+        return transformJar(inputJar, outputJar, cfg, Resident.NONE);
+    }
+
+    static TransformReport transformJar(
+        Path inputJar,
+        Path outputJar,
+        Config cfg,
+        Resident resident
     ) throws Exception {
         TransformReport rep = new TransformReport();
-        Pattern includeClass =
-            cfg.includeClassRegex == null
-                ? null
-                : Pattern.compile(cfg.includeClassRegex);
-        Pattern includeMethod =
-            cfg.includeMethodRegex == null
-                ? null
-                : Pattern.compile(cfg.includeMethodRegex);
-
-        try (JarFile jar = new JarFile(inputJar.toFile())) {
-            Manifest manifest = jar.getManifest();
+        if (cfg.reportPath == null) rep.countsOnly();
+        if (ReportStream.enabled(cfg)) {
+            rep.streamTo(
+                ReportStream.open(
+                    cfg.reportPath,
+                    ClassTransformVisitor.needsMethodIds(cfg)
+                )
+            );
+        }
+        try {
+            transformJars(
+                List.of(inputJar),
+                List.of(outputJar),
+                List.of(rep),
+                cfg,
+                resident
+            );
+            return rep;
+        } catch (Exception | Error e) {
+            if (rep.stream() != null) rep.stream().close();
+            throw e;
+        }
+    }
+
+    /**
+     * Transforms several jars in one pass. Selectors, the worker pool, the
+     * cache and the class hierarchy are shared, so types from every input
+     * resolve for every other input. Jars are written concurrently, each
+     * by its own ordered writer, and {@code reports.get(i)} receives the
+     * result for {@code inputs.get(i)}.
+     */
+    public static void transformJars(
+        List<Path> inputs,
+        List<Path> outputs,
+        List<TransformReport> reports,
+        Config cfg
+    ) throws Exception {
+        transformJars(inputs, outputs, reports, cfg, Resident.NONE);
+    }
+
+    /** As above, reusing what {@code resident} kept from earlier jobs. */
+    static void transformJars(
+        List<Path> inputs,
+        List<Path> outputs,
+        List<TransformReport> reports,
+        Config cfg,
+        Resident resident
+    ) throws Exception {
+        long start = System.nanoTime();
+        Selectors sel = resident.selectors(cfg);
+        List<ZipArchive> jars = new ArrayList<>();
+        ExecutorService pool = null;
+        ExecutorService writers = null;
+        try {
+            for (Path in : inputs) jars.add(ZipArchive.open(in));
+
+            pool = cfg.threads > 1
+                ? newWorkerPool(cfg.threads, "bctransform-worker-")
+                : null;
+            TransformContext ctx = new TransformContext(
+                cfg,
+                sel,
+                ClassHierarchy.forTool(),
+                cfg.dryRun ? null : resident.cache(cfg)
+            );
+            TransformMetrics metrics = ctx.metrics;
 
             if (cfg.dryRun) {
-                Enumeration<JarEntry> en = jar.entries();
-                while (en.hasMoreElements()) {
-                    JarEntry e = en.nextElement();
-                    if (
-                        e.isDirectory() || !e.getName().endsWith(".class")
-                    ) continue;
-                    rep.scannedClasses++;
-                    if (
-                        eligibleClass(e.getName(), includeClass, cfg)
-                    ) rep.transformedClasses++;
+                for (int i = 0; i < jars.size(); i++) {
+                    dryRun(jars.get(i), ctx, pool, reports.get(i));
+                }
+                finishMetrics(metrics, start, inputs, List.of(), reports);
+                return;
+            }
+
+            if (cfg.entryLog || cfg.timing) {
+                for (ZipArchive jar : jars) {
+                    indexClasses(jar, ctx.hierarchy, cfg, pool);
                 }
-                return rep;
+                resident.indexClasspath(ctx.hierarchy, cfg.classpath);
+                if (ctx.cache != null) ctx.cacheSalt = TransformCache.salt(
+                    cfg,
+                    sel.profile()
+                );
             }
+            metrics.lap(TransformMetrics.READ, start);
 
-            if (outputJar.getParent() != null) Files.createDirectories(
-                outputJar.getParent()
+            if (pool != null && jars.size() > 1) {
+                writers = newWorkerPool(
+                    Math.min(cfg.threads, jars.size()),
+                    "bctransform-writer-"
+                );
+            }
+            List<Future<Void>> done = new ArrayList<>();
+            for (int i = 0; i < jars.size(); i++) {
+                ZipArchive jar = jars.get(i);
+                Path out = outputs.get(i);
+                TransformReport rep = reports.get(i);
+                ExecutorService workers = pool;
+                done.add(
+                    submit(writers, () -> {
+                        writeJar(jar, out, ctx, workers, rep);
+                        return null;
+                    })
+                );
+            }
+            for (Future<Void> f : done) await(f);
+
+            List<String> unresolved = ctx.hierarchy.unresolvedTypes();
+            for (TransformReport rep : reports) {
+                rep.unresolvedTypes = unresolved;
+            }
+            finishMetrics(metrics, start, inputs, outputs, reports);
+        } finally {
+            if (writers != null) writers.shutdownNow();
+            if (pool != null) pool.shutdownNow();
+            for (ZipArchive jar : jars) jar.close();
+        }
+    }
+
+    private static void finishMetrics(
+        TransformMetrics metrics,
+        long start,
+        List<Path> inputs,
+        List<Path> outputs,
+        List<TransformReport> reports
+    ) throws IOException {
+        if (!metrics.enabled()) return;
+        long in = 0;
+        long out = 0;
+        for (Path p : inputs) in += Files.size(p);
+        for (Path p : outputs) out += Files.size(p);
+        metrics.finish(System.nanoTime() - start, in, out);
+        for (TransformReport rep : reports) rep.metrics = metrics;
+    }
+
+    /**
+     * Reports what a transform would do without writing anything. Each
+     * eligible class goes through {@link #dryRunEntry} on the pool, and
+     * results are merged in entry order through the same window as the
+     * writer, so the report lists methods exactly as a real run would.
+     */
+    private static void dryRun(
+        ZipArchive jar,
+        TransformContext ctx,
+        ExecutorService pool,
+        TransformReport rep
+    ) throws Exception {
+        Config cfg = ctx.cfg;
+        boolean instrument = cfg.entryLog || cfg.timing;
+        int window = Math.max(1, cfg.threads) * WINDOW_PER_THREAD;
+        ArrayDeque<Future<TransformReport>> pending = new ArrayDeque<>();
+        List<ZipArchive.Entry> entries = jar.entries();
+        EntryNameSet seen = new EntryNameSet(entries);
+        for (int i = 0; i < entries.size(); i++) {
+            ZipArchive.Entry e = entries.get(i);
+            if (!seen.add(i)) continue;
+            if (isNestedJar(e, cfg)) {
+                while (!pending.isEmpty()) rep.merge(await(pending.poll()));
+                rep.nestedJars++;
+                try (
+                    ZipArchive nested = jar.openNested(e, nestedLimit(cfg))
+                ) {
+                    dryRun(nested, ctx, pool, rep);
+                }
+                continue;
+            }
+            if (e.isDirectory() || !e.getName().endsWith(".class")) continue;
+            rep.scannedClasses++;
+            if (!instrument || !eligibleClass(e.getName(), ctx.selectors)) {
+                continue;
+            }
+            pending.add(submit(pool, () -> dryRunEntry(jar, e, ctx)));
+            if (pending.size() >= window) rep.merge(await(pending.poll()));
+        }
+        while (!pending.isEmpty()) rep.merge(await(pending.poll()));
+    }
+
+    private static TransformReport dryRunEntry(
+        ZipArchive jar,
+        ZipArchive.Entry e,
+        TransformContext ctx
+    ) throws IOException {
+        long start = ctx.metrics.now();
+        byte[] original = jar.read(e);
+        ctx.metrics.lap(TransformMetrics.INFLATE, start);
+        TransformReport classRep = dryRunClass(original, ctx);
+        ctx.metrics.classDone(
+            e.getName(),
+            ctx.metrics.now() - start,
+            original.length
+        );
+        return classRep;
+    }
+
+    /**
+     * Reports the methods {@link #transformClass} would instrument in one
+     * class, without generating code. The class is parsed only by the
+     * prescan, so method bodies are skipped unless cost filtering needs
+     * them, and the cache is not consulted.
+     */
+    static TransformReport dryRunClass(byte[] original, TransformContext ctx) {
+        long t = ctx.metrics.now();
+        ClassReader cr = new ClassReader(original);
+        TransformReport classRep = new TransformReport();
+        Set<String> selected = ClassPrescan.selectedMethods(cr, ctx, classRep);
+        if (selected.isEmpty()) {
+            classRep.fastPathClasses++;
+        } else {
+            ClassTransformVisitor.recordPlanned(
+                cr.getClassName(),
+                selected,
+                ctx.cfg,
+                ctx.selectors,
+                classRep
             );
+        }
+        ctx.metrics.lap(TransformMetrics.PARSE, t);
+        return classRep;
+    }
 
-            try (
-                OutputStream fos = Files.newOutputStream(outputJar);
-                BufferedOutputStream bos = new BufferedOutputStream(fos);
-                JarOutputStream jos =
-                    manifest != null
-                        ? new JarOutputStream(bos, manifest)
-                        : new JarOutputStream(bos)
-            ) {
-                Set<String> written = new HashSet<>();
-                Enumeration<JarEntry> en = jar.entries();
+    private static void writeJar(
+        ZipArchive jar,
+        Path outputJar,
+        TransformContext ctx,
+        ExecutorService pool,
+        TransformReport rep
+    ) throws Exception {
+        if (outputJar.getParent() != null) Files.createDirectories(
+            outputJar.getParent()
+        );
+        try (
+            FileChannel ch = FileChannel.open(
+                outputJar,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+            )
+        ) {
+            writeArchive(jar, ch, ctx, pool, rep, true);
+        }
+    }
+
+    private static void writeArchive(
+        ZipArchive jar,
+        WritableByteChannel out,
+        TransformContext ctx,
+        ExecutorService pool,
+        TransformReport rep,
+        boolean embedRuntime
+    ) throws Exception {
+        Config cfg = ctx.cfg;
+        boolean instrument = cfg.entryLog || cfg.timing;
+        int window = Math.max(1, cfg.threads) * WINDOW_PER_THREAD;
 
-                while (en.hasMoreElements()) {
-                    JarEntry inEntry = en.nextElement();
+        try (ZipWriter zw = new ZipWriter(out)) {
+            List<ZipArchive.Entry> entries = jar.entries();
+            EntryNameSet written = new EntryNameSet(entries);
+            ArrayDeque<PendingEntry> pending = new ArrayDeque<>();
 
+            ZipArchive.Entry manifest = jar.find(MANIFEST_NAME);
+            if (manifest != null) {
+                written.add(entries.indexOf(manifest));
+                zw.copyRaw(manifest, jar.rawData(manifest));
+            }
+
+            for (int i = 0; i < entries.size(); i++) {
+                ZipArchive.Entry inEntry = entries.get(i);
+                if (!written.add(i)) continue;
+
+                if (isNestedJar(inEntry, cfg)) {
+                    while (!pending.isEmpty()) {
+                        writeEntry(jar, zw, pending.removeFirst(), rep, ctx);
+                    }
+                    writeNestedJar(jar, inEntry, zw, ctx, pool, rep);
+                    continue;
+                }
+
+                Future<ClassResult> result = null;
+                long charge = 0;
+                if (
+                    !inEntry.isDirectory() &&
+                    inEntry.getName().endsWith(".class")
+                ) {
+                    rep.scannedClasses++;
                     if (
-                        manifest != null &&
-                        "META-INF/MANIFEST.MF".equalsIgnoreCase(
-                            inEntry.getName()
-                        )
+                        instrument &&
+                        eligibleClass(inEntry.getName(), ctx.selectors)
                     ) {
-                        continue;
+                        charge = reserve(jar, zw, inEntry, pending, rep, ctx);
+                        result = submit(pool, () ->
+                            transformEntry(jar, inEntry, ctx)
+                        );
                     }
+                }
+
+                pending.addLast(new PendingEntry(inEntry, result, charge));
+                if (pending.size() >= window) {
+                    writeEntry(jar, zw, pending.removeFirst(), rep, ctx);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                writeEntry(jar, zw, pending.removeFirst(), rep, ctx);
+            }
+
+            if (
+                embedRuntime &&
+                rep.transformedMethods > 0 &&
+                cfg.embedRuntime &&
+                ClassTransformVisitor.needsRuntime(cfg)
+            ) {
+                String root = classRoot(jar);
+                Map<String, byte[]> runtime = RuntimeClasses.load();
+                for (Map.Entry<String, byte[]> rt : runtime.entrySet()) {
+                    String name = root + rt.getKey();
+                    if (written.contains(name)) continue;
+                    zw.add(
+                        name,
+                        ZipWriter.compress(rt.getValue(), ZipArchive.DEFLATED)
+                    );
+                }
+            }
+        }
+    }
 
-                    if (!written.add(inEntry.getName())) continue;
-
-                    JarEntry outEntry = new JarEntry(inEntry.getName());
-                    outEntry.setTime(inEntry.getTime());
-                    jos.putNextEntry(outEntry);
-
-                    try (InputStream is = jar.getInputStream(inEntry)) {
-                        if (
-                            !inEntry.isDirectory() &&
-                            inEntry.getName().endsWith(".class")
-                        ) {
-                            rep.scannedClasses++;
-                            if (
-                                eligibleClass(
-                                    inEntry.getName(),
-                                    includeClass,
-                                    cfg
-                                ) &&
-                                (cfg.entryLog || cfg.timing)
-                            ) {
-                                byte[] original = is.readAllBytes();
-                                TransformReport classRep =
-                                    new TransformReport();
-                                byte[] transformed = transformClassBytes(
-                                    original,
-                                    cfg,
-                                    includeMethod,
-                                    classRep
-                                );
-                                jos.write(transformed);
-                                rep.transformedClasses +=
-                                    classRep.transformedClasses;
-                                rep.transformedMethods +=
-                                    classRep.transformedMethods;
-                                rep.methods.addAll(classRep.methods);
-                            } else {
-                                is.transferTo(jos);
-                            }
-                        } else {
-                            is.transferTo(jos);
-                        }
+    /**
+     * Rewrites a jar stored inside {@code jar} on the calling writer
+     * thread, fanning its classes out to the shared pool. The result keeps
+     * the entry's compression method, since Spring Boot refuses nested
+     * jars that are not STORED. Jars up to the memory limit are rebuilt in
+     * a byte array and larger ones in a temp file; a jar with nothing to
+     * transform is copied through untouched. The runtime is not embedded
+     * here: the outer archive carries one copy in its class root.
+     */
+    private static void writeNestedJar(
+        ZipArchive jar,
+        ZipArchive.Entry inEntry,
+        ZipWriter zw,
+        TransformContext ctx,
+        ExecutorService pool,
+        TransformReport rep
+    ) throws Exception {
+        long limit = nestedLimit(ctx.cfg);
+        TransformReport nestedRep = new TransformReport();
+        nestedRep.nestedJars++;
+        try (ZipArchive nested = jar.openNested(inEntry, limit)) {
+            if (inEntry.getSize() <= limit) {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream(
+                    (int) inEntry.getSize() + 4096
+                );
+                writeArchive(
+                    nested,
+                    Channels.newChannel(buf),
+                    ctx,
+                    pool,
+                    nestedRep,
+                    false
+                );
+                if (nestedRep.transformedClasses > 0) {
+                    long t = ctx.metrics.now();
+                    ZipWriter.Compressed data = ZipWriter.compress(
+                        buf.toByteArray(),
+                        inEntry.method
+                    );
+                    t = ctx.metrics.lap(TransformMetrics.DEFLATE, t);
+                    zw.write(inEntry, data);
+                    ctx.metrics.lap(TransformMetrics.WRITE, t);
+                } else {
+                    zw.copyRaw(inEntry, jar.rawData(inEntry));
+                }
+            } else {
+                Path tmp = Files.createTempFile("bctransform-nested", ".jar");
+                try {
+                    try (
+                        FileChannel ch = FileChannel.open(
+                            tmp,
+                            StandardOpenOption.WRITE
+                        )
+                    ) {
+                        writeArchive(nested, ch, ctx, pool, nestedRep, false);
+                    }
+                    if (nestedRep.transformedClasses > 0) {
+                        long t = ctx.metrics.now();
+                        zw.write(inEntry, tmp);
+                        ctx.metrics.lap(TransformMetrics.WRITE, t);
+                    } else {
+                        zw.copyRaw(inEntry, jar.rawData(inEntry));
                     }
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+        }
+        rep.merge(nestedRep);
+    }
+
+    /**
+     * Charges an entry against the in-flight budget before it is handed to
+     * the pool. While the budget is spent, this writer's oldest pending
+     * entries are written out to free it; with none left it waits for
+     * other writers. Returns the charge to release once the entry is
+     * written, 0 when there is no budget.
+     */
+    private static long reserve(
+        ZipArchive jar,
+        ZipWriter zw,
+        ZipArchive.Entry inEntry,
+        ArrayDeque<PendingEntry> pending,
+        TransformReport rep,
+        TransformContext ctx
+    ) throws Exception {
+        if (ctx.inflight == null) return 0;
+        long size = inEntry.getSize();
+        long charge;
+        while ((charge = ctx.inflight.tryAcquire(size)) < 0) {
+            if (pending.isEmpty()) return ctx.inflight.acquire(size);
+            writeEntry(jar, zw, pending.removeFirst(), rep, ctx);
+        }
+        return charge;
+    }
+
+    private static ClassResult transformEntry(
+        ZipArchive jar,
+        ZipArchive.Entry inEntry,
+        TransformContext ctx
+    ) throws Exception {
+        TransformMetrics metrics = ctx.metrics;
+        long start = metrics.now();
+        byte[] original = jar.read(inEntry);
+        metrics.lap(TransformMetrics.INFLATE, start);
+        TransformCache.Entry result = transformClass(original, ctx);
+        long t = metrics.now();
+        if (
+            result.bytes != null &&
+            ctx.inflight != null &&
+            result.bytes.length > ctx.inflight.limit()
+        ) {
+            // larger than the whole budget: park it on disk until its turn
+            Path spill = Files.createTempFile("bctransform-class", ".bin");
+            Files.write(spill, result.bytes);
+            metrics.classDone(
+                inEntry.getName(),
+                metrics.now() - start,
+                original.length
+            );
+            return new ClassResult(spill, result.report);
+        }
+        ZipWriter.Compressed data = result.bytes == null
+            ? null
+            : ZipWriter.compress(result.bytes, inEntry.method);
+        metrics.lap(TransformMetrics.DEFLATE, t);
+        metrics.classDone(
+            inEntry.getName(),
+            metrics.now() - start,
+            original.length
+        );
+        return new ClassResult(data, result.report);
+    }
+
+    /**
+     * Instruments one class file through the cache, if there is one. The
+     * result's bytes are null when the class is left unchanged.
+     */
+    static TransformCache.Entry transformClass(
+        byte[] original,
+        TransformContext ctx
+    ) throws IOException {
+        TransformMetrics metrics = ctx.metrics;
+        long t = metrics.now();
+        String key = null;
+        if (ctx.cache != null) {
+            key = ctx.cache.key(ctx.cacheSalt, original);
+            TransformCache.Entry hit = ctx.cache.get(key);
+            // a stale hit is transformed again and overwritten below
+            if (hit != null && hit.validFor(ctx.hierarchy)) {
+                hit.report.cacheHits++;
+                return hit;
+            }
+        }
+
+        ClassReader cr = new ClassReader(original);
+        TransformReport classRep = new TransformReport();
+        byte[] transformed = null;
+        Map<String, String> supertypes = ctx.cache != null
+            ? new HashMap<>()
+            : null;
+        Set<String> selected = ClassPrescan.selectedMethods(cr, ctx, classRep);
+        metrics.lap(TransformMetrics.PARSE, t);
+        if (selected.isEmpty()) {
+            classRep.fastPathClasses++;
+        } else {
+            transformed = transformClassBytes(
+                cr,
+                selected,
+                ctx,
+                classRep,
+                supertypes
+            );
+        }
+
+        TransformCache.Entry entry = new TransformCache.Entry(
+            transformed,
+            classRep,
+            supertypes
+        );
+        if (key != null) {
+            ctx.cache.put(key, entry);
+            classRep.cacheMisses++;
+        }
+        return entry;
+    }
+
+    private static void writeEntry(
+        ZipArchive jar,
+        ZipWriter zw,
+        PendingEntry entry,
+        TransformReport rep,
+        TransformContext ctx
+    ) throws Exception {
+        ClassResult result = entry.result == null
+            ? null
+            : await(entry.result);
+        long t = ctx.metrics.now();
+        if (result != null && result.spill != null) {
+            try {
+                zw.write(entry.inEntry, result.spill);
+            } finally {
+                Files.deleteIfExists(result.spill);
+            }
+        } else if (result != null && result.data != null) {
+            zw.write(entry.inEntry, result.data);
+        } else {
+            zw.copyRaw(entry.inEntry, jar.rawData(entry.inEntry));
+        }
+        ctx.metrics.lap(TransformMetrics.WRITE, t);
+        if (entry.charge > 0) ctx.inflight.release(entry.charge);
+        if (result != null) rep.merge(result.report);
+    }
 
-                    jos.closeEntry();
+    /**
+     * Reads every class header into the hierarchy, in entry order. Like
+     * the writer, it keeps only a window of reads in flight, since each
+     * holds a buffer until it is added.
+     */
+    private static void indexClasses(
+        ZipArchive jar,
+        ClassHierarchy hierarchy,
+        Config cfg,
+        ExecutorService pool
+    ) throws Exception {
+        int window = Math.max(1, cfg.threads) * WINDOW_PER_THREAD;
+        ArrayDeque<Future<ClassReader>> headers = new ArrayDeque<>();
+        for (ZipArchive.Entry e : jar.entries()) {
+            if (isNestedJar(e, cfg)) {
+                while (!headers.isEmpty()) {
+                    addHeader(hierarchy, headers.removeFirst());
+                }
+                try (
+                    ZipArchive nested = jar.openNested(e, nestedLimit(cfg))
+                ) {
+                    indexClasses(nested, hierarchy, cfg, pool);
                 }
+                continue;
+            }
+            if (e.isDirectory() || !e.getName().endsWith(".class")) continue;
+            headers.add(submit(pool, () -> ClassHierarchy.readHeader(jar, e)));
+            if (headers.size() >= window) {
+                addHeader(hierarchy, headers.removeFirst());
             }
         }
+        while (!headers.isEmpty()) addHeader(hierarchy, headers.removeFirst());
+    }
 
-        return rep;
+    private static void addHeader(
+        ClassHierarchy hierarchy,
+        Future<ClassReader> header
+    ) throws Exception {
+        ClassReader cr = await(header);
+        if (cr != null) hierarchy.add(cr);
     }
 
-    private static boolean eligibleClass(
-        String entryName,
-        Pattern includeClass,
-        Config cfg
+    static <T> Future<T> submit(
+        ExecutorService pool,
+        Callable<T> task
     ) {
+        FutureTask<T> f = new FutureTask<>(task);
+        if (pool == null) f.run();
+        else pool.execute(f);
+        return f;
+    }
+
+    static <T> T await(Future<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    static ExecutorService newWorkerPool(int threads, String name) {
+        AtomicInteger seq = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, name + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static boolean eligibleClass(String entryName, Selectors sel) {
         String name = entryName.endsWith(".class")
             ? entryName.substring(0, entryName.length() - 6)
             : entryName;
-        if (
-            name.endsWith("module-info") || name.endsWith("package-info")
-        ) return false;
-        if (
-            includeClass != null &&
-            !includeClass.matcher(name.replace('/', '.')).find()
-        ) return false;
-        for (String ex : cfg.excludeClassRegex) {
-            if (
-                Pattern.compile(ex).matcher(name.replace('/', '.')).find()
-            ) return false;
+        for (String root : CLASS_ROOTS) {
+            if (name.startsWith(root)) return sel.classEligible(
+                name.substring(root.length())
+            );
         }
-        return true;
+        return sel.classEligible(name);
+    }
+
+    private static boolean isNestedJar(ZipArchive.Entry e, Config cfg) {
+        return (
+            cfg.nestedJars &&
+            !e.isDirectory() &&
+            e.getName().toLowerCase(Locale.ROOT).endsWith(".jar")
+        );
     }
 
+    /** Nested jars above this size are spilled to temp files. */
+    private static long nestedLimit(Config cfg) {
+        return cfg.maxInflightBytes > 0
+            ? Math.min(cfg.nestedMemoryBytes, cfg.maxInflightBytes)
+            : cfg.nestedMemoryBytes;
+    }
+
+    /** Directory that a fat jar's own classes live under, or "". */
+    private static String classRoot(ZipArchive jar) {
+        for (String root : CLASS_ROOTS) {
+            for (ZipArchive.Entry e : jar.entries()) {
+                if (e.getName().startsWith(root)) return root;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Instruments one class. With stats on, the time ASM spends in
+     * {@code visitMaxs} (where COMPUTE_FRAMES does its analysis and the
+     * hierarchy lookups) is charged to "frames" and the rest to
+     * "transform".
+     */
     private static byte[] transformClassBytes(
-        byte[] bytes,
-        Config cfg,
-        Pattern includeMethod,
-        TransformReport rep
+        ClassReader cr,
+        Set<String> selected,
+        TransformContext ctx,
+        TransformReport rep,
+        Map<String, String> supertypes
     ) {
-        ClassReader cr = new ClassReader(bytes);
-        ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_FRAMES);
+        TransformMetrics metrics = ctx.metrics;
+        long start = metrics.now();
+        ClassWriter cw = new HierarchyClassWriter(
+            cr,
+            ClassWriter.COMPUTE_FRAMES,
+            ctx.hierarchy
+        ).recordAnswers(supertypes);
+        FrameTimer frames = metrics.enabled() ? new FrameTimer(cw) : null;
         ClassTransformVisitor cv = new ClassTransformVisitor(
-            cw,
-            cfg,
-            includeMethod,
+            frames != null ? frames : cw,
+            ctx.cfg,
+            ctx.selectors,
+            selected,
             rep
         );
-        cr.accept(cv, ClassReader.EXPAND_FRAMES);
-        return cw.toByteArray();
+        cr.accept(cv, ClassReader.SKIP_FRAMES);
+        byte[] out = cw.toByteArray();
+        if (frames != null) {
+            long total = System.nanoTime() - start;
+            metrics.add(TransformMetrics.FRAMES, frames.nanos);
+            metrics.add(TransformMetrics.TRANSFORM, total - frames.nanos);
+        }
+        return out;
+    }
+
+    private static final class FrameTimer extends ClassVisitor {
+
+        long nanos;
+
+        FrameTimer(ClassVisitor cv) {
+            super(Opcodes.ASM9, cv);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(
+            int access,
+            String name,
+            String descriptor,
+            String signature,
+            String[] exceptions
+        ) {
+            MethodVisitor mv = super.visitMethod(
+                access,
+                name,
+                descriptor,
+                signature,
+                exceptions
+            );
+            if (mv == null) return null;
+            return new MethodVisitor(Opcodes.ASM9, mv) {
+                @Override
+                public void visitMaxs(int maxStack, int maxLocals) {
+                    long t = System.nanoTime();
+                    super.visitMaxs(maxStack, maxLocals);
+                    nanos += System.nanoTime() - t;
+                }
+            };
+        }
+    }
+
+    private static final class PendingEntry {
+
+        final ZipArchive.Entry inEntry;
+        final Future<ClassResult> result;
+        final long charge;
+
+        PendingEntry(
+            ZipArchive.Entry inEntry,
+            Future<ClassResult> result,
+            long charge
+        ) {
+            this.inEntry = inEntry;
+            this.result = result;
+            this.charge = charge;
+        }
+    }
+
+    private static final class ClassResult {
+
+        final ZipWriter.Compressed data;
+        final Path spill;
+        final TransformReport report;
+
+        ClassResult(ZipWriter.Compressed data, TransformReport report) {
+            this.data = data;
+            this.spill = null;
+            this.report = report;
+        }
+
+        ClassResult(Path spill, TransformReport report) {
+            this.data = null;
+            this.spill = spill;
+            this.report = report;
+        }
     }
 
     private JarTransformer() {}
@@ -1,8 +1,20 @@
 package com.arda.bctransform;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -10,25 +22,50 @@ import picocli.CommandLine.Option;
 @Command(
     name = "bctransform",
     mixinStandardHelpOptions = true,
-    version = "2.0.0",
-    description = "Bytecode transformer CLI (instrumentation, not obfuscation)"
+    version = Main.VERSION,
+    description = {
+        "Bytecode transformer CLI (instrumentation, not obfuscation)",
+        "'bctransform daemon' keeps a warm transformer resident; " +
+        "'bctransform client <options>' runs these options in it.",
+    }
 )
 public final class Main implements Callable<Integer> {
 
+    static final String VERSION = "2.0.0";
+
+    private static final List<String> LOG_LEVELS = List.of(
+        "trace",
+        "debug",
+        "info",
+        "warn",
+        "error"
+    );
+
     @Option(
         names = { "-i", "--input" },
-        required = true,
-        description = "Input jar path"
+        description = "Input jar, or a directory of jars (repeatable)"
     )
-    Path input;
+    List<Path> inputs;
+
+    @Option(
+        names = { "--input-list" },
+        description = "File listing input jars, one per line or path-separated"
+    )
+    Path inputList;
 
     @Option(
         names = { "-o", "--output" },
         required = true,
-        description = "Output jar path"
+        description = "Output jar path; an output directory when several inputs are given"
     )
     Path output;
 
+    @Option(
+        names = { "--report-per-jar" },
+        description = "With several inputs, treat --report as a directory and write one report per jar"
+    )
+    boolean reportPerJar;
+
     @Option(
         names = { "-c", "--config" },
         description = "YAML config file (optional)"
@@ -37,25 +74,55 @@ public final class Main implements Callable<Integer> {
 
     @Option(
         names = { "--dry-run" },
-        description = "Scan and report only; do not write output"
+        description = "Report the methods that would be instrumented; do not write output"
     )
     boolean dryRun;
 
+    @Option(
+        names = { "--exploded" },
+        description = "Input is one class directory (e.g. target/classes); write an output directory"
+    )
+    boolean exploded;
+
+    @Option(
+        names = { "--watch" },
+        description = "With --exploded: keep running and retransform classes as they change"
+    )
+    boolean watch;
+
+    @Option(
+        names = { "--stats" },
+        description = "Time each transform phase and print a summary; adds a 'metrics' section to the report"
+    )
+    boolean stats;
+
+    @Option(
+        names = { "--threads" },
+        description = "Worker threads for class transforms (default: available cores)"
+    )
+    Integer threads;
+
     @Option(
         names = { "--report" },
         description = "Write JSON report to this path (optional)"
     )
     Path report;
 
+    @Option(
+        names = { "--report-format" },
+        description = "Report format: json (default) | ndjson (streamed, one record per method)"
+    )
+    String reportFormat;
+
     @Option(
         names = { "--include-class-regex" },
-        description = "Only transform classes matching regex"
+        description = "Only transform classes matching regex (or glob:com.acme.**)"
     )
     String includeClassRegex;
 
     @Option(
         names = { "--exclude-class-regex" },
-        description = "Skip classes matching regex (repeatable)"
+        description = "Skip classes matching regex or glob:pattern (repeatable)"
     )
     List<String> excludeClassRegex;
 
@@ -67,7 +134,7 @@ public final class Main implements Callable<Integer> {
 
     @Option(
         names = { "--exclude-method-regex" },
-        description = "Skip methods matching regex (repeatable)"
+        description = "Skip methods matching regex or glob:pattern (repeatable)"
     )
     List<String> excludeMethodRegex;
 
@@ -77,6 +144,96 @@ public final class Main implements Callable<Integer> {
     )
     String requireAnnotationDesc;
 
+    @Option(
+        names = { "--switchable" },
+        description = "Guard probes with per-method flags toggled via JMX (com.arda.bctransform:type=Probes)"
+    )
+    boolean switchable;
+
+    @Option(
+        names = { "--min-instructions" },
+        description = "Skip loop-free methods with fewer bytecode instructions than this (reported with the reason)"
+    )
+    Integer minInstructions;
+
+    @Option(
+        names = { "--skip-trivial-accessors" },
+        description = "Skip plain field getters/setters and loop-free equals/hashCode"
+    )
+    boolean skipTrivialAccessors;
+
+    @Option(
+        names = { "--profile" },
+        description = "Metrics TSV from an earlier run; instrument only the methods it selects (see --profile-*)"
+    )
+    Path profile;
+
+    @Option(
+        names = { "--profile-top" },
+        description = "With --profile, select the N methods with the most self time"
+    )
+    Integer profileTop;
+
+    @Option(
+        names = { "--profile-min-mean-ns" },
+        description = "With --profile, select methods whose mean latency is at least this"
+    )
+    Long profileMinMeanNs;
+
+    @Option(
+        names = { "--profile-hot-calls" },
+        description = "With --profile, sample selected methods called this often whose mean is below the latency threshold"
+    )
+    Long profileHotCalls;
+
+    @Option(
+        names = { "--profile-hot-sample-rate" },
+        description = "Sample rate for hot, cheap methods (default 1/100)"
+    )
+    String profileHotSampleRate;
+
+    @Option(
+        names = { "--sample-rate" },
+        description = "Record 1 in N calls per method, e.g. 1/100 (YAML 'sampling' adds per-selector rates)"
+    )
+    String sampleRate;
+
+    @Option(
+        names = { "--classpath" },
+        description = "Dependency jars/dirs for frame computation (path-separated, repeatable)"
+    )
+    List<String> classpath;
+
+    @Option(
+        names = { "--cache-dir" },
+        description = "Persistent transform cache directory (optional)"
+    )
+    Path cacheDir;
+
+    @Option(
+        names = { "--cache-max-mb" },
+        description = "Cache size bound in MB, LRU-evicted (default 512)"
+    )
+    Integer cacheMaxMb;
+
+    @Option(
+        names = { "--no-nested-jars" },
+        description = "Copy jars inside the input (BOOT-INF/lib, WEB-INF/lib) unchanged instead of transforming them"
+    )
+    boolean noNestedJars;
+
+    @Option(
+        names = { "--nested-memory-mb" },
+        description = "Nested jars up to this size are rebuilt in memory; larger ones spill to temp files (default 64)"
+    )
+    Integer nestedMemoryMb;
+
+    @Option(
+        names = { "--max-inflight-bytes" },
+        description = "Memory budget for entries between reading and writing; classes beyond it wait, larger ones spill to temp files (default: no limit)"
+    )
+    Long maxInflightBytes;
+
     @Option(
         names = { "--entry-log" },
         description = "Inject log at method entry"
@@ -91,11 +248,29 @@ public final class Main implements Callable<Integer> {
 
     @Option(
         names = { "--logger" },
-        description = "Logger target: stdout|slf4j",
+        description = "Logger target: stdout|slf4j|jfr (JFR events, recorded only while a recording enables them)",
         defaultValue = "stdout"
     )
     String logger;
 
+    @Option(
+        names = { "--log-level" },
+        description = "slf4j level for injected logs: trace|debug|info|warn|error (default info)"
+    )
+    String logLevel;
+
+    @Option(
+        names = { "--sink" },
+        description = "Probe sink: log (uses --logger) | metrics (in-process counters + histogram) | async (ring-buffered event file) | stdout (--logger stdout lines from precomputed bytes, no per-call allocation)"
+    )
+    String sink;
+
+    @Option(
+        names = { "--no-embed-runtime" },
+        description = "Do not copy the probe runtime classes into the output jar"
+    )
+    boolean noEmbedRuntime;
+
     @Option(
         names = { "--log-prefix" },
         description = "Log message prefix",
@@ -103,11 +278,52 @@ public final class Main implements Callable<Integer> {
     )
     String logPrefix;
 
+    // where a daemon job's output goes, and what relative paths resolve
+    // against; a plain CLI run uses the process's own
+    private PrintStream out = System.out;
+    private PrintStream err = System.err;
+    private Path cwd = null;
+    private Resident resident = Resident.NONE;
+
     public static void main(String[] args) {
-        int code = new CommandLine(new Main()).execute(args);
+        String[] rest = args.length > 0
+            ? Arrays.copyOfRange(args, 1, args.length)
+            : args;
+        int code;
+        if (args.length > 0 && args[0].equals("daemon")) {
+            code = new CommandLine(new Daemon()).execute(rest);
+        } else if (args.length > 0 && args[0].equals("client")) {
+            code = DaemonClient.run(rest);
+        } else {
+            code = new CommandLine(new Main()).execute(args);
+        }
         System.exit(code);
     }
 
+    /**
+     * Runs one command line in this JVM as a daemon job: relative paths
+     * resolve against the client's {@code cwd}, output goes to the given
+     * streams, and warm state comes from {@code resident}.
+     */
+    static int run(
+        String[] args,
+        Path cwd,
+        PrintStream out,
+        PrintStream err,
+        Resident resident
+    ) {
+        Main m = new Main();
+        m.cwd = cwd;
+        m.out = out;
+        m.err = err;
+        m.resident = resident;
+        CommandLine cl = new CommandLine(m);
+        cl.registerConverter(Path.class, cwd::resolve);
+        cl.setOut(new PrintWriter(out, true));
+        cl.setErr(new PrintWriter(err, true));
+        return cl.execute(args);
+    }
+
     @Override
     public Integer call() throws Exception {
         Config cfg = new Config();
@@ -126,18 +342,318 @@ public final class Main implements Callable<Integer> {
         if (requireAnnotationDesc != null) cfg.requireAnnotationDesc =
             requireAnnotationDesc;
 
+        if (switchable) cfg.switchable = true;
+        if (sampleRate != null) cfg.sampleRate = Config.parseSampleRate(
+            sampleRate
+        );
+
+        if (classpath != null) {
+            for (String cp : classpath) {
+                for (String p : cp.split(File.pathSeparator)) {
+                    if (!p.isEmpty()) cfg.classpath.add(path(p));
+                }
+            }
+        }
+
+        if (cacheDir != null) cfg.cacheDir = cacheDir;
+        if (cacheMaxMb != null) cfg.cacheMaxBytes = cacheMaxMb * 1024L * 1024L;
+        if (profile != null) cfg.profilePath = profile;
+        if (profileTop != null) cfg.profileTopN = profileTop;
+        if (profileMinMeanNs != null) cfg.profileMinMeanNs = profileMinMeanNs;
+        if (profileHotCalls != null) cfg.profileHotCalls = profileHotCalls;
+        if (profileHotSampleRate != null) {
+            cfg.profileHotSampleRate = Config.parseSampleRate(
+                profileHotSampleRate
+            );
+        }
+        if (minInstructions != null) cfg.minInstructions = minInstructions;
+        if (skipTrivialAccessors) cfg.skipTrivialAccessors = true;
+        if (noNestedJars) cfg.nestedJars = false;
+        if (nestedMemoryMb != null) {
+            cfg.nestedMemoryBytes = nestedMemoryMb * 1024L * 1024L;
+        }
+        if (maxInflightBytes != null) cfg.maxInflightBytes = maxInflightBytes;
+
         if (entryLog) cfg.entryLog = true;
         if (timing) cfg.timing = true;
         if (logger != null) cfg.logger = logger;
         if (logPrefix != null) cfg.logPrefix = logPrefix;
+        if (logLevel != null) cfg.logLevel = logLevel;
+        if (sink != null) cfg.sink = sink;
+        if (noEmbedRuntime) cfg.embedRuntime = false;
+
+        if (threads != null) cfg.threads = threads;
+
+        if (!LOG_LEVELS.contains(cfg.logLevel.toLowerCase(Locale.ROOT))) {
+            err.println("Unknown log level: " + cfg.logLevel);
+            return 2;
+        }
 
         cfg.dryRun = dryRun;
+        if (stats) cfg.stats = true;
         cfg.reportPath = report;
+        if (reportFormat != null) cfg.reportFormat = reportFormat;
+
+        if (exploded || watch) return transformDirectory(cfg);
+        if (
+            cfg.maxInflightBytes > 0 &&
+            cfg.reportPath != null &&
+            !ReportStream.enabled(cfg)
+        ) {
+            err.println(
+                "Warning: a json report keeps every method in memory; " +
+                "use --report-format ndjson to stream it"
+            );
+        }
+
+        List<Path> jars = resolveInputs();
+        if (jars.isEmpty()) {
+            err.println("No input jars given (use -i or --input-list)");
+            return 2;
+        }
+
+        TransformReport rep;
+        if (jars.size() == 1 && !isBatch()) {
+            rep = JarTransformer.transformJar(
+                jars.get(0),
+                output,
+                cfg,
+                resident
+            );
+            if (cfg.reportPath != null) writeReport(cfg.reportPath, rep, cfg);
+        } else {
+            rep = transformBatch(jars, cfg);
+        }
+        printSummary(rep, cfg);
+        return 0;
+    }
 
-        TransformReport rep = JarTransformer.transformJar(input, output, cfg);
-        if (cfg.reportPath != null) ReportWriter.write(cfg.reportPath, rep);
-        System.out.println("Transformed classes: " + rep.transformedClasses);
-        System.out.println("Transformed methods: " + rep.transformedMethods);
+    private void printSummary(TransformReport rep, Config cfg) {
+        out.println("Transformed classes: " + rep.transformedClasses);
+        out.println("Transformed methods: " + rep.transformedMethods);
+        if (rep.skippedMethods > 0) {
+            out.println("Skipped methods: " + rep.skippedMethods);
+        }
+        if (rep.nestedJars > 0) {
+            out.println("Nested jars: " + rep.nestedJars);
+        }
+        if (cfg.cacheDir != null) {
+            out.println(
+                "Cache hits/misses: " + rep.cacheHits + "/" + rep.cacheMisses
+            );
+        }
+        if (rep.metrics != null) out.print(rep.metrics.summary());
+        if (!rep.unresolvedTypes.isEmpty()) {
+            err.println(
+                "Warning: " +
+                rep.unresolvedTypes.size() +
+                " type(s) not found for frame computation; " +
+                "add their jars with --classpath (see report)"
+            );
+        }
+    }
+
+    /**
+     * Instruments an exploded class directory into {@code output} and, with
+     * {@code --watch}, keeps it and the report up to date until stopped.
+     */
+    private int transformDirectory(Config cfg) throws Exception {
+        if (
+            inputList != null ||
+            inputs == null ||
+            inputs.size() != 1 ||
+            !Files.isDirectory(inputs.get(0))
+        ) {
+            err.println("--exploded and --watch take one input directory");
+            return 2;
+        }
+        try (
+            DirectoryTransformer dt = DirectoryTransformer.open(
+                inputs.get(0),
+                output,
+                cfg,
+                resident
+            )
+        ) {
+            dt.transformAll();
+            printSummary(directoryReport(dt, cfg), cfg);
+            if (!watch) return 0;
+            out.println("Watching " + inputs.get(0) + " (Ctrl-C to stop)");
+            out.flush();
+            dt.watch(
+                new DirectoryTransformer.Listener() {
+                    @Override
+                    public void updated(int files, long nanos)
+                        throws Exception {
+                        long t = System.nanoTime();
+                        TransformReport rep = directoryReport(dt, cfg);
+                        long total = nanos + System.nanoTime() - t;
+                        out.printf(
+                            "Updated %d file(s) in %.1f ms; %d methods " +
+                            "instrumented%n",
+                            files,
+                            total / 1e6,
+                            rep.transformedMethods
+                        );
+                        out.flush();
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        err.println("[bctransform] update failed: " + e);
+                        err.flush();
+                    }
+                }
+            );
+        }
         return 0;
     }
+
+    /** The directory's current report, written out when one was asked for. */
+    private TransformReport directoryReport(
+        DirectoryTransformer dt,
+        Config cfg
+    ) throws Exception {
+        TransformReport rep = new TransformReport();
+        if (ReportStream.enabled(cfg)) {
+            rep.streamTo(
+                ReportStream.open(
+                    cfg.reportPath,
+                    ClassTransformVisitor.needsMethodIds(cfg)
+                )
+            );
+        }
+        dt.report(rep);
+        if (cfg.reportPath != null) writeReport(cfg.reportPath, rep, cfg);
+        return rep;
+    }
+
+    private Path path(String p) {
+        return cwd == null ? Path.of(p) : cwd.resolve(p);
+    }
+
+    private boolean isBatch() {
+        return (
+            inputList != null ||
+            inputs.size() > 1 ||
+            Files.isDirectory(inputs.get(0))
+        );
+    }
+
+    private List<Path> resolveInputs() throws IOException {
+        List<Path> out = new ArrayList<>();
+        if (inputs != null) {
+            for (Path p : inputs) {
+                if (Files.isDirectory(p)) out.addAll(jarsIn(p));
+                else out.add(p);
+            }
+        }
+        if (inputList != null) {
+            for (String line : Files.readAllLines(inputList)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                for (String p : line.split(File.pathSeparator)) {
+                    if (p.isEmpty()) continue;
+                    Path jar = inputList.resolveSibling(p);
+                    if (Files.isDirectory(jar)) out.addAll(jarsIn(jar));
+                    else out.add(jar);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static List<Path> jarsIn(Path dir) throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s
+                .filter(p -> p.getFileName().toString().endsWith(".jar"))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Transforms every input in one {@link JarTransformer#transformJars}
+     * call into {@code output/<jar name>} and returns the merged report.
+     */
+    private TransformReport transformBatch(List<Path> jars, Config cfg)
+        throws Exception {
+        List<Path> outs = new ArrayList<>();
+        Set<Path> names = new HashSet<>();
+        for (Path jar : jars) {
+            Path name = jar.getFileName();
+            if (!names.add(name)) {
+                throw new IllegalArgumentException(
+                    "Two inputs share the file name " + name
+                );
+            }
+            outs.add(output.resolve(name));
+        }
+
+        boolean ids = ClassTransformVisitor.needsMethodIds(cfg);
+        boolean perJar = cfg.reportPath != null && reportPerJar;
+        ReportStream shared = null;
+        if (
+            cfg.reportPath != null && !perJar && ReportStream.enabled(cfg)
+        ) {
+            shared = ReportStream.open(cfg.reportPath, ids);
+        }
+        List<Path> reportPaths = new ArrayList<>();
+        List<TransformReport> reports = new ArrayList<>();
+        try {
+            for (Path jar : jars) {
+                TransformReport r = new TransformReport();
+                if (cfg.reportPath == null) r.countsOnly();
+                if (perJar) {
+                    String n = jar.getFileName().toString();
+                    if (n.endsWith(".jar")) n = n.substring(0, n.length() - 4);
+                    Path rp = cfg.reportPath.resolve(
+                        n + (ReportStream.enabled(cfg) ? ".ndjson" : ".json")
+                    );
+                    reportPaths.add(rp);
+                    if (ReportStream.enabled(cfg)) {
+                        r.streamTo(ReportStream.open(rp, ids));
+                    }
+                } else if (shared != null) {
+                    r.streamTo(shared);
+                }
+                reports.add(r);
+            }
+            JarTransformer.transformJars(jars, outs, reports, cfg, resident);
+        } catch (Exception | Error e) {
+            for (TransformReport r : reports) {
+                if (r.stream() != null) r.stream().close();
+            }
+            if (shared != null) shared.close();
+            throw e;
+        }
+
+        TransformReport merged = new TransformReport();
+        if (cfg.reportPath == null) merged.countsOnly();
+        if (shared != null) merged.streamTo(shared);
+        for (int i = 0; i < reports.size(); i++) {
+            TransformReport r = reports.get(i);
+            if (perJar) writeReport(reportPaths.get(i), r, cfg);
+            merged.merge(r);
+            merged.unresolvedTypes = r.unresolvedTypes;
+            merged.metrics = r.metrics;
+        }
+        if (cfg.reportPath != null && !perJar) {
+            writeReport(cfg.reportPath, merged, cfg);
+        }
+        out.println("Jars: " + jars.size());
+        return merged;
+    }
+
+    private static void writeReport(Path path, TransformReport rep, Config cfg)
+        throws Exception {
+        long start = System.nanoTime();
+        ReportWriter.write(path, rep);
+        if (ClassTransformVisitor.needsMethodIds(cfg)) {
+            ReportWriter.writeMethodTable(path, rep);
+        }
+        if (rep.metrics != null) {
+            rep.metrics.add(TransformMetrics.REPORT, System.nanoTime() - start);
+        }
+    }
 }
@@ -0,0 +1,206 @@
+package com.arda.bctransform;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+/**
+ * Shape of one method body, gathered by the prescan when cost filtering is
+ * on: instruction count, whether any jump goes backwards (a loop), how
+ * many calls it makes, and its first few opcodes for spotting plain field
+ * getters and setters. Methods with a loop are never skipped for size,
+ * since their cost does not depend on it.
+ */
+final class MethodCost extends MethodVisitor {
+
+    private static final int SHAPE = 5;
+
+    int instructions = 0;
+    int calls = 0;
+    boolean loops = false;
+
+    private final int[] shape = new int[SHAPE];
+    private final Set<Label> seen = new HashSet<>();
+
+    MethodCost(MethodVisitor mv) {
+        super(ASM9, mv);
+    }
+
+    static boolean enabled(Config cfg) {
+        return cfg.minInstructions > 0 || cfg.skipTrivialAccessors;
+    }
+
+    /** Why this method should not be instrumented, or null. */
+    String skipReason(Config cfg, String name, String desc) {
+        if (cfg.skipTrivialAccessors) {
+            if (isAccessor()) return "accessor";
+            if (!loops && isObjectMethod(name, desc)) {
+                return "loop-free " + name;
+            }
+        }
+        if (!loops && instructions < cfg.minInstructions) {
+            return (
+                "instructions=" +
+                instructions +
+                " < minInstructions=" +
+                cfg.minInstructions +
+                (calls == 0 ? ", no calls" : ", calls=" + calls)
+            );
+        }
+        return null;
+    }
+
+    private boolean isAccessor() {
+        if (calls > 0 || loops) return false;
+        switch (instructions) {
+            case 2: // getstatic; xreturn
+                return shape[0] == GETSTATIC && isReturn(shape[1]);
+            case 3: // aload; getfield; xreturn | xload; putstatic; return
+                return (
+                    (shape[0] == ALOAD &&
+                        shape[1] == GETFIELD &&
+                        isReturn(shape[2])) ||
+                    (isLoad(shape[0]) &&
+                        shape[1] == PUTSTATIC &&
+                        shape[2] == RETURN)
+                );
+            case 4: // aload; xload; putfield; return
+                return isSetter() && shape[3] == RETURN;
+            case 5: // aload; xload; putfield; aload; areturn
+                return isSetter() && shape[3] == ALOAD && shape[4] == ARETURN;
+            default:
+                return false;
+        }
+    }
+
+    private boolean isSetter() {
+        return shape[0] == ALOAD && isLoad(shape[1]) && shape[2] == PUTFIELD;
+    }
+
+    private static boolean isObjectMethod(String name, String desc) {
+        return (
+            (name.equals("equals") && desc.equals("(Ljava/lang/Object;)Z")) ||
+            (name.equals("hashCode") && desc.equals("()I"))
+        );
+    }
+
+    private static boolean isLoad(int op) {
+        return op >= ILOAD && op <= ALOAD;
+    }
+
+    private static boolean isReturn(int op) {
+        return op >= IRETURN && op <= ARETURN;
+    }
+
+    private void insn(int opcode) {
+        if (instructions < SHAPE) shape[instructions] = opcode;
+        instructions++;
+    }
+
+    private void target(Label l) {
+        if (seen.contains(l)) loops = true;
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        seen.add(label);
+        super.visitLabel(label);
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        insn(opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        insn(opcode);
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        insn(opcode);
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        insn(opcode);
+    }
+
+    @Override
+    public void visitFieldInsn(
+        int opcode,
+        String owner,
+        String name,
+        String descriptor
+    ) {
+        insn(opcode);
+    }
+
+    @Override
+    public void visitMethodInsn(
+        int opcode,
+        String owner,
+        String name,
+        String descriptor,
+        boolean isInterface
+    ) {
+        insn(opcode);
+        calls++;
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(
+        String name,
+        String descriptor,
+        Handle bsm,
+        Object... bsmArgs
+    ) {
+        insn(INVOKEDYNAMIC);
+        calls++;
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        insn(opcode);
+        target(label);
+    }
+
+    @Override
+    public void visitLdcInsn(Object value) {
+        insn(LDC);
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        insn(IINC);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(
+        int min,
+        int max,
+        Label dflt,
+        Label... labels
+    ) {
+        insn(TABLESWITCH);
+        target(dflt);
+        for (Label l : labels) target(l);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        insn(LOOKUPSWITCH);
+        target(dflt);
+        for (Label l : labels) target(l);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String descriptor, int dims) {
+        insn(MULTIANEWARRAY);
+    }
+}
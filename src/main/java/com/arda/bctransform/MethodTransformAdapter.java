@@ -2,26 +2,36 @@ package com.arda.bctransform;
 
 import static org.objectweb.asm.Opcodes.*;
 
-import java.util.regex.Pattern;
-import org.objectweb.asm.AnnotationVisitor;
+import java.util.Locale;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
 
 public final class MethodTransformAdapter extends AdviceAdapter {
 
-    private final int accessFlags;
+    private static final Type JFR_EVENT = Type.getObjectType(
+        ClassTransformVisitor.JFR_EVENT
+    );
+
     private final String ownerInternal;
     private final String name;
     private final String desc;
+    private final int probeIndex;
+    private final int sampleRate;
     private final Config cfg;
-    private final Pattern includeMethod;
     private final TransformReport rep;
     private final ClassTransformVisitor parent;
 
-    private boolean hasRequiredAnnotation = false;
+    private final boolean jfr;
+    // the metrics sink takes the start time and tracks self time itself
+    private final boolean metrics;
+
+    // the begun JFR event instead of a start time under --logger jfr
     private int startTimeLocal = -1;
-    private boolean eligible = false;
+    private int activeLocal = -1;
+    // start of the catch-all that closes metrics frames on any throw
+    private Label bodyStart = null;
 
     public MethodTransformAdapter(
         MethodVisitor mv,
@@ -29,80 +39,156 @@ public final class MethodTransformAdapter extends AdviceAdapter {
         String ownerInternal,
         String name,
         String desc,
+        int probeIndex,
+        int sampleRate,
         Config cfg,
-        Pattern includeMethod,
         TransformReport rep,
         ClassTransformVisitor parent
     ) {
         super(ASM9, mv, access, name, desc);
-        this.accessFlags = access;
         this.ownerInternal = ownerInternal;
         this.name = name;
         this.desc = desc;
+        this.probeIndex = probeIndex;
+        this.sampleRate = sampleRate;
         this.cfg = cfg;
-        this.includeMethod = includeMethod;
         this.rep = rep;
         this.parent = parent;
-        this.eligible = computeEligible();
-    }
-
-    private boolean computeEligible() {
-        if ((accessFlags & (ACC_ABSTRACT | ACC_NATIVE)) != 0) return false;
-        if (name.equals("<init>") || name.equals("<clinit>")) return false;
-
-        String sig = name + desc;
-        if (
-            includeMethod != null && !includeMethod.matcher(sig).find()
-        ) return false;
-
-        for (String ex : cfg.excludeMethodRegex) {
-            if (Pattern.compile(ex).matcher(sig).find()) return false;
-        }
-
-        return cfg.entryLog || cfg.timing;
-    }
-
-    @Override
-    public AnnotationVisitor visitAnnotation(
-        String descriptor,
-        boolean visible
-    ) {
-        if (
-            cfg.requireAnnotationDesc != null &&
-            cfg.requireAnnotationDesc.equals(descriptor)
-        ) {
-            hasRequiredAnnotation = true;
-        }
-        return super.visitAnnotation(descriptor, visible);
+        this.jfr = ClassTransformVisitor.jfrLogger(cfg);
+        this.metrics = ClassTransformVisitor.METRICS.equals(
+            ClassTransformVisitor.runtimeSink(cfg)
+        );
     }
 
     @Override
     protected void onMethodEnter() {
-        if (!eligible) return;
-        if (cfg.requireAnnotationDesc != null && !hasRequiredAnnotation) return;
+        Label skip = null;
+        boolean levelGuard = ClassTransformVisitor.needsLoggerField(cfg);
+        Type startType = jfr ? JFR_EVENT : Type.LONG_TYPE;
+        if (cfg.timing) startTimeLocal = newLocal(startType);
+        if (cfg.switchable || sampleRate > 1 || levelGuard || jfr) {
+            // activeLocal = switched on && sampled && level (or JFR event)
+            // enabled; the exit probe reuses it, and every local is
+            // assigned on the skipped path too
+            skip = newLabel();
+            activeLocal = newLocal(Type.INT_TYPE);
+            if (cfg.timing) {
+                visitInsn(jfr ? ACONST_NULL : LCONST_0);
+                storeLocal(startTimeLocal, startType);
+            }
+            visitInsn(ICONST_0);
+            storeLocal(activeLocal, Type.INT_TYPE);
+            if (cfg.switchable) {
+                visitFieldInsn(
+                    GETSTATIC,
+                    ClassTransformVisitor.SWITCHES,
+                    "flags",
+                    "[Z"
+                );
+                pushProbeId();
+                visitInsn(BALOAD);
+                ifZCmp(EQ, skip);
+            }
+            if (sampleRate > 1) {
+                emitSampleCheck();
+                ifZCmp(NE, skip);
+            }
+            if (levelGuard) {
+                loadLogger();
+                visitMethodInsn(
+                    INVOKEINTERFACE,
+                    "org/slf4j/Logger",
+                    "is" + levelName() + "Enabled",
+                    "()Z",
+                    true
+                );
+                ifZCmp(EQ, skip);
+            }
+            if (jfr) {
+                visitMethodInsn(
+                    INVOKESTATIC,
+                    ClassTransformVisitor.JFR_SINK,
+                    "isEnabled",
+                    "()Z",
+                    false
+                );
+                ifZCmp(EQ, skip);
+            }
+            visitInsn(ICONST_1);
+            storeLocal(activeLocal, Type.INT_TYPE);
+        }
 
         if (cfg.entryLog) {
             emitLog("enter");
         }
 
-        if (cfg.timing) {
+        if (cfg.timing && jfr) {
+            visitMethodInsn(
+                INVOKESTATIC,
+                ClassTransformVisitor.JFR_SINK,
+                "begin",
+                "()" + JFR_EVENT.getDescriptor(),
+                false
+            );
+            storeLocal(startTimeLocal, startType);
+        } else if (cfg.timing && metrics) {
+            visitMethodInsn(
+                INVOKESTATIC,
+                ClassTransformVisitor.METRICS,
+                "begin",
+                "()J",
+                false
+            );
+            storeLocal(startTimeLocal, Type.LONG_TYPE);
+        } else if (cfg.timing) {
             invokeStatic(
                 Type.getType(System.class),
                 new org.objectweb.asm.commons.Method("nanoTime", "()J")
             );
-            startTimeLocal = newLocal(Type.LONG_TYPE);
             storeLocal(startTimeLocal, Type.LONG_TYPE);
         }
 
+        if (skip != null) mark(skip);
+        if (cfg.timing && metrics) bodyStart = mark();
         record(true, cfg.entryLog, cfg.timing);
     }
 
     @Override
     protected void onMethodExit(int opcode) {
-        if (!eligible) return;
-        if (cfg.requireAnnotationDesc != null && !hasRequiredAnnotation) return;
         if (!cfg.timing) return;
         if (startTimeLocal < 0) return;
+        // every throw out of the method reaches the catch-all instead
+        if (bodyStart != null && opcode == ATHROW) return;
+
+        Label skip = null;
+        if (activeLocal >= 0) {
+            skip = newLabel();
+            loadLocal(activeLocal, Type.INT_TYPE);
+            ifZCmp(EQ, skip);
+        }
+
+        if (jfr) {
+            loadLocal(startTimeLocal, JFR_EVENT);
+            visitLdcInsn(ownerInternal.replace('/', '.'));
+            visitLdcInsn(name + desc);
+            visitMethodInsn(
+                INVOKESTATIC,
+                ClassTransformVisitor.JFR_SINK,
+                opcode == ATHROW ? "endThrow" : "end",
+                "(" +
+                    JFR_EVENT.getDescriptor() +
+                    "Ljava/lang/String;Ljava/lang/String;)V",
+                false
+            );
+            mark(skip);
+            return;
+        }
+
+        if (metrics) {
+            emitMetricsExit(opcode == ATHROW ? "exitThrow" : "exit");
+            if (skip != null) mark(skip);
+            return;
+        }
 
         invokeStatic(
             Type.getType(System.class),
@@ -119,26 +205,141 @@ public final class MethodTransformAdapter extends AdviceAdapter {
         } else {
             emitTiming("exit", durLocal);
         }
+        if (skip != null) mark(skip);
+    }
+
+    /**
+     * Closes the metrics frame when an exception leaves the method, also
+     * one thrown by a callee, so the sink's per-thread stack of open
+     * calls stays balanced. Appended last, the handler ranks below the
+     * method's own.
+     */
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        if (bodyStart != null) {
+            Label bodyEnd = mark();
+            catchException(bodyStart, bodyEnd, null);
+            Label skip = null;
+            if (activeLocal >= 0) {
+                skip = newLabel();
+                loadLocal(activeLocal, Type.INT_TYPE);
+                ifZCmp(EQ, skip);
+            }
+            emitMetricsExit("exitThrow");
+            if (skip != null) mark(skip);
+            throwException();
+        }
+        super.visitMaxs(maxStack, maxLocals);
+    }
+
+    private void emitMetricsExit(String method) {
+        pushProbeId();
+        loadLocal(startTimeLocal, Type.LONG_TYPE);
+        visitMethodInsn(
+            INVOKESTATIC,
+            ClassTransformVisitor.METRICS,
+            method,
+            "(IJ)V",
+            false
+        );
+    }
+
+    /**
+     * Bumps this method's counter in the calling thread's stripe of the
+     * class's sample array and leaves {@code count % rate} on the stack;
+     * zero means sampled. Each stripe samples 1/rate of its own calls, so
+     * threads on different stripes share no cache line. The counter is
+     * unsynchronized: two threads on one stripe can lose an update, which
+     * only shifts which call gets sampled.
+     */
+    private void emitSampleCheck() {
+        if (!parent.addsMembers()) {
+            pushProbeId();
+            ClassTransformVisitor.pushInt(this, sampleRate);
+            visitMethodInsn(
+                INVOKESTATIC,
+                ClassTransformVisitor.SAMPLER,
+                "next",
+                "(II)I",
+                false
+            );
+            return;
+        }
+        visitFieldInsn(
+            GETSTATIC,
+            ownerInternal,
+            ClassTransformVisitor.SAMPLE_FIELD,
+            "[I"
+        );
+        // (thread id & (stripes - 1)) * row + probeIndex
+        visitMethodInsn(
+            INVOKESTATIC,
+            "java/lang/Thread",
+            "currentThread",
+            "()Ljava/lang/Thread;",
+            false
+        );
+        visitMethodInsn(
+            INVOKEVIRTUAL,
+            "java/lang/Thread",
+            "getId",
+            "()J",
+            false
+        );
+        visitInsn(L2I);
+        ClassTransformVisitor.pushInt(
+            this,
+            ClassTransformVisitor.SAMPLE_STRIPES - 1
+        );
+        visitInsn(IAND);
+        ClassTransformVisitor.pushInt(this, parent.sampleRowLength());
+        visitInsn(IMUL);
+        ClassTransformVisitor.pushInt(this, probeIndex);
+        visitInsn(IADD);
+        visitInsn(DUP2);
+        visitInsn(IALOAD);
+        visitInsn(ICONST_1);
+        visitInsn(IADD);
+        visitInsn(DUP_X2);
+        visitInsn(IASTORE);
+        if (Integer.bitCount(sampleRate) == 1) {
+            ClassTransformVisitor.pushInt(this, sampleRate - 1);
+            visitInsn(IAND);
+        } else {
+            ClassTransformVisitor.pushInt(this, sampleRate);
+            visitInsn(IREM);
+        }
     }
 
     private void emitLog(String phase) {
+        String sink = ClassTransformVisitor.runtimeSink(cfg);
+        if (sink != null) {
+            pushProbeId();
+            visitMethodInsn(INVOKESTATIC, sink, "enter", "(I)V", false);
+            return;
+        }
         String owner = ownerInternal.replace('/', '.');
-        String msg =
-            cfg.logPrefix + " " + phase + " " + owner + "." + name + desc;
-        if ("slf4j".equalsIgnoreCase(cfg.logger)) {
-            visitLdcInsn(ownerInternal);
+        if (jfr) {
+            visitLdcInsn(owner);
+            visitLdcInsn(name + desc);
             visitMethodInsn(
                 INVOKESTATIC,
-                "org/slf4j/LoggerFactory",
-                "getLogger",
-                "(Ljava/lang/String;)Lorg/slf4j/Logger;",
+                ClassTransformVisitor.JFR_SINK,
+                "enter",
+                "(Ljava/lang/String;Ljava/lang/String;)V",
                 false
             );
+            return;
+        }
+        String msg =
+            cfg.logPrefix + " " + phase + " " + owner + "." + name + desc;
+        if ("slf4j".equalsIgnoreCase(cfg.logger)) {
+            loadLogger();
             visitLdcInsn(msg);
             visitMethodInsn(
                 INVOKEINTERFACE,
                 "org/slf4j/Logger",
-                "info",
+                levelName().toLowerCase(Locale.ROOT),
                 "(Ljava/lang/String;)V",
                 true
             );
@@ -161,16 +362,22 @@ public final class MethodTransformAdapter extends AdviceAdapter {
     }
 
     private void emitTiming(String phase, int durLocal) {
-        String owner = ownerInternal.replace('/', '.');
-        if ("slf4j".equalsIgnoreCase(cfg.logger)) {
-            visitLdcInsn(ownerInternal);
+        String sink = ClassTransformVisitor.runtimeSink(cfg);
+        if (sink != null) {
+            pushProbeId();
+            loadLocal(durLocal, Type.LONG_TYPE);
             visitMethodInsn(
                 INVOKESTATIC,
-                "org/slf4j/LoggerFactory",
-                "getLogger",
-                "(Ljava/lang/String;)Lorg/slf4j/Logger;",
+                sink,
+                "throw".equals(phase) ? "recordThrow" : "record",
+                "(IJ)V",
                 false
             );
+            return;
+        }
+        String owner = ownerInternal.replace('/', '.');
+        if ("slf4j".equalsIgnoreCase(cfg.logger)) {
+            loadLogger();
             visitLdcInsn(
                 cfg.logPrefix +
                     " " +
@@ -200,7 +407,7 @@ public final class MethodTransformAdapter extends AdviceAdapter {
             visitMethodInsn(
                 INVOKEINTERFACE,
                 "org/slf4j/Logger",
-                "info",
+                levelName().toLowerCase(Locale.ROOT),
                 "(Ljava/lang/String;)V",
                 true
             );
@@ -267,18 +474,63 @@ public final class MethodTransformAdapter extends AdviceAdapter {
         );
     }
 
+    private void loadLogger() {
+        if (!parent.addsMembers()) {
+            visitLdcInsn(ownerInternal);
+            visitMethodInsn(
+                INVOKESTATIC,
+                "org/slf4j/LoggerFactory",
+                "getLogger",
+                "(Ljava/lang/String;)Lorg/slf4j/Logger;",
+                false
+            );
+            return;
+        }
+        visitFieldInsn(
+            GETSTATIC,
+            ownerInternal,
+            ClassTransformVisitor.LOGGER_FIELD,
+            "Lorg/slf4j/Logger;"
+        );
+    }
+
+    private String levelName() {
+        String l = cfg.logLevel.toLowerCase(Locale.ROOT);
+        return Character.toUpperCase(l.charAt(0)) + l.substring(1);
+    }
+
+    private void pushProbeId() {
+        if (parent.fixedBaseId() >= 0) {
+            ClassTransformVisitor.pushInt(
+                this,
+                parent.fixedBaseId() + probeIndex
+            );
+            return;
+        }
+        visitFieldInsn(
+            GETSTATIC,
+            ownerInternal,
+            ClassTransformVisitor.BASE_FIELD,
+            "I"
+        );
+        ClassTransformVisitor.pushInt(this, probeIndex);
+        visitInsn(IADD);
+    }
+
     private void record(boolean transformed, boolean entry, boolean timing) {
         if (!transformed) return;
         parent.markClassTransformed();
         rep.transformedMethods++;
-        rep.methods.add(
+        TransformReport.TransformedMethod m =
             new TransformReport.TransformedMethod(
                 ownerInternal.replace('/', '.'),
                 name,
                 desc,
                 entry,
-                timing
-            )
-        );
+                timing,
+                sampleRate
+            );
+        m.reason = parent.selectionReason(name, desc);
+        rep.methods.add(m);
     }
 }
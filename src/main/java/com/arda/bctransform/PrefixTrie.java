@@ -0,0 +1,59 @@
+package com.arda.bctransform;
+
+import java.util.Arrays;
+
+final class PrefixTrie {
+
+    private final Node root = new Node();
+    private int size = 0;
+
+    void add(String prefix) {
+        Node n = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            n = n.child(prefix.charAt(i));
+        }
+        if (!n.terminal) size++;
+        n.terminal = true;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean matchesPrefixOf(String s) {
+        Node n = root;
+        if (n.terminal) return true;
+        for (int i = 0; i < s.length(); i++) {
+            n = n.find(s.charAt(i));
+            if (n == null) return false;
+            if (n.terminal) return true;
+        }
+        return false;
+    }
+
+    private static final class Node {
+
+        private char[] labels = new char[0];
+        private Node[] next = new Node[0];
+        private boolean terminal = false;
+
+        Node find(char c) {
+            char[] l = labels;
+            for (int i = 0; i < l.length; i++) {
+                if (l[i] == c) return next[i];
+            }
+            return null;
+        }
+
+        Node child(char c) {
+            Node n = find(c);
+            if (n != null) return n;
+            n = new Node();
+            labels = Arrays.copyOf(labels, labels.length + 1);
+            next = Arrays.copyOf(next, next.length + 1);
+            labels[labels.length - 1] = c;
+            next[next.length - 1] = n;
+            return n;
+        }
+    }
+}
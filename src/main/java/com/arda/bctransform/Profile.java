@@ -0,0 +1,201 @@
+package com.arda.bctransform;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timing profile from an earlier instrumented run, used to instrument
+ * only the methods that mattered. The input is the TSV written by the
+ * metrics sink ({@code bctransform.metrics.file}): a {@code #} header
+ * naming the columns, then one row per method with at least
+ * {@code owner}, {@code method} and {@code calls}, plus {@code selfNs}
+ * or {@code totalNs}. Methods are ranked by self time, so wrappers such
+ * as {@code main} that only call other instrumented methods rank low;
+ * older profiles without {@code selfNs} rank by {@code totalNs}. Mean
+ * latency is inclusive, from {@code totalNs} when it is there.
+ *
+ * <p>A profiled method is selected when it is within the top N or its
+ * mean latency reaches the threshold (or always, when neither limit is
+ * set). A selected method called at least {@code profileHotCalls} times
+ * whose mean is below the threshold is hot but cheap: it is sampled
+ * instead of timed on every call. Methods missing from the profile were
+ * not called in the profiled run and are skipped.
+ */
+public final class Profile {
+
+    /** "Cheap" bound for hot methods when no latency threshold is set. */
+    static final long DEFAULT_CHEAP_NS = 1000;
+
+    private final Map<String, Decision> decisions;
+    private final byte[] digest;
+
+    private Profile(Map<String, Decision> decisions, byte[] digest) {
+        this.decisions = decisions;
+        this.digest = digest;
+    }
+
+    public static Profile load(Config cfg) throws IOException {
+        byte[] data = Files.readAllBytes(cfg.profilePath);
+        List<Row> rows = parse(cfg.profilePath, data);
+        boolean self = !rows.isEmpty() && rows.get(0).self;
+        rows.sort(Comparator.comparingLong((Row r) -> r.rankNs).reversed());
+
+        long cheapNs = cfg.profileMinMeanNs > 0
+            ? cfg.profileMinMeanNs
+            : DEFAULT_CHEAP_NS;
+        String metric = self ? "selfNs" : "totalNs";
+        Map<String, Decision> out = new HashMap<>();
+        for (int i = 0; i < rows.size(); i++) {
+            Row r = rows.get(i);
+            int rank = i + 1;
+            long mean = r.calls == 0 ? 0 : r.latencyNs / r.calls;
+            boolean byRank = cfg.profileTopN > 0 && rank <= cfg.profileTopN;
+            boolean byLatency =
+                cfg.profileMinMeanNs > 0 && mean >= cfg.profileMinMeanNs;
+            boolean unlimited =
+                cfg.profileTopN <= 0 && cfg.profileMinMeanNs <= 0;
+
+            StringBuilder why = new StringBuilder();
+            why.append("profile: rank ").append(rank).append(" by ");
+            why.append(metric).append(", meanNs ").append(mean);
+            if (!(byRank || byLatency || unlimited)) {
+                if (cfg.profileTopN > 0) {
+                    why.append(", not in top ").append(cfg.profileTopN);
+                }
+                if (cfg.profileMinMeanNs > 0) {
+                    why.append(" < ").append(cfg.profileMinMeanNs);
+                }
+                out.put(r.key, new Decision(false, 1, why.toString()));
+                continue;
+            }
+            if (byRank) why.append(", top ").append(cfg.profileTopN);
+            if (byLatency) why.append(" >= ").append(cfg.profileMinMeanNs);
+
+            int rate = 1;
+            if (
+                cfg.profileHotCalls > 0 &&
+                r.calls >= cfg.profileHotCalls &&
+                mean < cheapNs
+            ) {
+                rate = Math.max(1, cfg.profileHotSampleRate);
+                why.append(", hot (").append(r.calls).append(" calls)");
+                why.append(" and cheap, sampled 1/").append(rate);
+            }
+            out.put(r.key, new Decision(true, rate, why.toString()));
+        }
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md.update(data);
+        return new Profile(out, md.digest());
+    }
+
+    /** The decision for a method, or null when it is not in the profile. */
+    public Decision decision(String internalName, String name, String desc) {
+        return decisions.get(key(internalName.replace('/', '.'), name + desc));
+    }
+
+    /** Hash of the profile file, for the cache salt. */
+    public byte[] digest() {
+        return digest.clone();
+    }
+
+    private static String key(String owner, String method) {
+        return owner + '\t' + method;
+    }
+
+    private static List<Row> parse(Path path, byte[] data)
+        throws IOException {
+        String[] lines = new String(data, StandardCharsets.UTF_8).split("\n");
+        Map<String, Integer> cols = new HashMap<>();
+        Map<String, Row> rows = new LinkedHashMap<>();
+        for (String line : lines) {
+            line = line.strip();
+            if (line.isEmpty()) continue;
+            if (line.startsWith("#")) {
+                String[] names = line.substring(1).strip().split("\t");
+                for (int i = 0; i < names.length; i++) {
+                    cols.put(names[i].strip().toLowerCase(Locale.ROOT), i);
+                }
+                continue;
+            }
+            Integer owner = cols.get("owner");
+            Integer method = cols.get("method");
+            Integer calls = cols.get("calls");
+            Integer selfNs = cols.get("selfns");
+            Integer totalNs = cols.get("totalns");
+            Integer rankNs = selfNs != null ? selfNs : totalNs;
+            Integer latencyNs = totalNs != null ? totalNs : selfNs;
+            if (
+                owner == null ||
+                method == null ||
+                calls == null ||
+                rankNs == null
+            ) {
+                throw new IOException(
+                    path +
+                    ": profile header must name owner, method, calls and " +
+                    "selfNs or totalNs"
+                );
+            }
+            String[] f = line.split("\t");
+            try {
+                String key = key(f[owner], f[method]);
+                Row r = rows.computeIfAbsent(
+                    key,
+                    k -> new Row(k, selfNs != null)
+                );
+                r.calls += Long.parseLong(f[calls]);
+                r.rankNs += Long.parseLong(f[rankNs]);
+                r.latencyNs += Long.parseLong(f[latencyNs]);
+            } catch (RuntimeException e) {
+                throw new IOException(path + ": bad profile row: " + line, e);
+            }
+        }
+        return new ArrayList<>(rows.values());
+    }
+
+    public static final class Decision {
+
+        public final boolean selected;
+        public final int sampleRate;
+        public final String reason;
+
+        Decision(boolean selected, int sampleRate, String reason) {
+            this.selected = selected;
+            this.sampleRate = sampleRate;
+            this.reason = reason;
+        }
+    }
+
+    private static final class Row {
+
+        final String key;
+        final boolean self;
+        long calls;
+        // selfNs when the profile has it, else totalNs
+        long rankNs;
+        // totalNs when the profile has it, else selfNs
+        long latencyNs;
+
+        Row(String key, boolean self) {
+            this.key = key;
+            this.self = self;
+        }
+    }
+}
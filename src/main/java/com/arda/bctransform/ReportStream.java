@@ -0,0 +1,137 @@
+package com.arda.bctransform;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * NDJSON report: one {@code "method"} record per instrumented method,
+ * written as classes are merged, then a {@code "summary"} record. Only the
+ * counters stay in memory. The method table, if requested, is streamed the
+ * same way.
+ */
+public final class ReportStream implements AutoCloseable {
+
+    public static final String FORMAT = "ndjson";
+
+    private final JsonGenerator gen;
+    private final BufferedWriter table;
+    private String tableOwner = null;
+    private int tableIndex = 0;
+
+    private ReportStream(JsonGenerator gen, BufferedWriter table) {
+        this.gen = gen;
+        this.table = table;
+    }
+
+    public static boolean enabled(Config cfg) {
+        return (
+            cfg.reportPath != null && FORMAT.equalsIgnoreCase(cfg.reportFormat)
+        );
+    }
+
+    public static ReportStream open(Path path, boolean methodTable)
+        throws IOException {
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        JsonGenerator gen = new ObjectMapper().getFactory().createGenerator(
+            path.toFile(),
+            JsonEncoding.UTF8
+        );
+        gen.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+        BufferedWriter table = null;
+        if (methodTable) {
+            table = Files.newBufferedWriter(
+                ReportWriter.methodTablePath(path),
+                StandardCharsets.UTF_8
+            );
+            table.write(ReportWriter.METHOD_TABLE_HEADER);
+        }
+        return new ReportStream(gen, table);
+    }
+
+    /** Writes one class's methods contiguously, even with several feeders. */
+    public synchronized void methods(
+        List<TransformReport.TransformedMethod> ms
+    ) {
+        for (TransformReport.TransformedMethod m : ms) method(m);
+    }
+
+    public synchronized void skipped(List<TransformReport.SkippedMethod> ms) {
+        try {
+            for (TransformReport.SkippedMethod m : ms) {
+                gen.writeStartObject();
+                gen.writeStringField("type", "skipped");
+                gen.writeStringField("owner", m.owner);
+                gen.writeStringField("name", m.name);
+                gen.writeStringField("desc", m.desc);
+                gen.writeStringField("reason", m.reason);
+                gen.writeEndObject();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void method(TransformReport.TransformedMethod m) {
+        try {
+            gen.writeStartObject();
+            gen.writeStringField("type", "method");
+            gen.writeStringField("owner", m.owner);
+            gen.writeStringField("name", m.name);
+            gen.writeStringField("desc", m.desc);
+            gen.writeBooleanField("entryLog", m.entryLog);
+            gen.writeBooleanField("timing", m.timing);
+            gen.writeNumberField("sampleRate", m.sampleRate);
+            if (m.reason != null) gen.writeStringField("reason", m.reason);
+            gen.writeEndObject();
+            if (table != null) {
+                if (!m.owner.equals(tableOwner)) {
+                    tableOwner = m.owner;
+                    tableIndex = 0;
+                }
+                table.write(ReportWriter.methodTableRow(m, tableIndex++));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void finish(TransformReport r) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("type", "summary");
+        gen.writeNumberField("scannedClasses", r.scannedClasses);
+        gen.writeNumberField("transformedClasses", r.transformedClasses);
+        gen.writeNumberField("transformedMethods", r.transformedMethods);
+        gen.writeNumberField("fastPathClasses", r.fastPathClasses);
+        gen.writeNumberField("cacheHits", r.cacheHits);
+        gen.writeNumberField("cacheMisses", r.cacheMisses);
+        gen.writeNumberField("nestedJars", r.nestedJars);
+        gen.writeNumberField("skippedMethods", r.skippedMethods);
+        gen.writeArrayFieldStart("unresolvedTypes");
+        for (String t : r.unresolvedTypes) gen.writeString(t);
+        gen.writeEndArray();
+        if (r.metrics != null) gen.writeObjectField("metrics", r.metrics);
+        gen.writeEndObject();
+        close();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (!gen.isClosed()) {
+                gen.writeRaw('\n');
+                gen.close();
+            }
+        } finally {
+            if (table != null) table.close();
+        }
+    }
+}
@@ -2,13 +2,21 @@ package com.arda.bctransform;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
 public final class ReportWriter {
 
+    static final String METHOD_TABLE_HEADER =
+        "# owner\tindex\tmethod\tsampleRate\n";
+
     public static void write(Path path, TransformReport report)
         throws Exception {
+        if (report.stream() != null) {
+            report.stream().finish(report);
+            return;
+        }
         if (path.getParent() != null) Files.createDirectories(path.getParent());
         ObjectMapper om = new ObjectMapper().enable(
             SerializationFeature.INDENT_OUTPUT
@@ -16,5 +24,38 @@ public final class ReportWriter {
         om.writeValue(path.toFile(), report);
     }
 
+    public static Path writeMethodTable(Path reportPath, TransformReport report)
+        throws Exception {
+        Path table = methodTablePath(reportPath);
+        if (report.stream() != null) return table;
+        StringBuilder sb = new StringBuilder(METHOD_TABLE_HEADER);
+        String owner = null;
+        int index = 0;
+        for (TransformReport.TransformedMethod m : report.methods) {
+            if (!m.owner.equals(owner)) {
+                owner = m.owner;
+                index = 0;
+            }
+            sb.append(methodTableRow(m, index++));
+        }
+        Files.write(table, sb.toString().getBytes(StandardCharsets.UTF_8));
+        return table;
+    }
+
+    static Path methodTablePath(Path reportPath) {
+        String file = reportPath.getFileName().toString();
+        int dot = file.lastIndexOf('.');
+        return reportPath.resolveSibling(
+            (dot > 0 ? file.substring(0, dot) : file) + ".methods.tsv"
+        );
+    }
+
+    static String methodTableRow(TransformReport.TransformedMethod m, int i) {
+        return (
+            m.owner + '\t' + i + '\t' + m.name + m.desc + '\t' +
+            m.sampleRate + '\n'
+        );
+    }
+
     private ReportWriter() {}
 }
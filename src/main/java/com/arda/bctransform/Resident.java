@@ -0,0 +1,142 @@
+package com.arda.bctransform;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State the daemon keeps warm between jobs: compiled selectors, open
+ * transform caches and the hierarchy of classpath jars. Each is keyed by
+ * everything it was built from (config values, file size and modification
+ * time), so a changed config or jar is rebuilt rather than reused, and
+ * each map drops its least recently used entries past a fixed size.
+ * {@link #NONE} keeps nothing and is what one-shot CLI runs use.
+ */
+final class Resident {
+
+    static final Resident NONE = new Resident(0);
+
+    private final Map<String, Selectors> selectors;
+    private final Map<String, TransformCache> caches;
+    private final Map<Path, Stamped> classpath;
+
+    Resident(int entries) {
+        this.selectors = lru(entries);
+        this.caches = lru(entries);
+        this.classpath = lru(entries);
+    }
+
+    Selectors selectors(Config cfg) throws IOException {
+        if (this == NONE) return Selectors.compile(cfg);
+        String key = selectorKey(cfg);
+        synchronized (selectors) {
+            Selectors s = selectors.get(key);
+            if (s != null) return s;
+        }
+        Selectors s = Selectors.compile(cfg);
+        synchronized (selectors) {
+            selectors.put(key, s);
+        }
+        return s;
+    }
+
+    TransformCache cache(Config cfg) throws IOException {
+        if (cfg.cacheDir == null) return null;
+        if (this == NONE) {
+            return TransformCache.open(cfg.cacheDir, cfg.cacheMaxBytes);
+        }
+        Path dir = cfg.cacheDir.toAbsolutePath().normalize();
+        String key = dir + "\n" + cfg.cacheMaxBytes;
+        synchronized (caches) {
+            TransformCache c = caches.get(key);
+            if (c == null || !Files.isDirectory(dir)) {
+                c = TransformCache.open(dir, cfg.cacheMaxBytes);
+                caches.put(key, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Indexes the classpath into {@code hierarchy}, reusing the snapshot
+     * of every jar unchanged since an earlier job. Directories are always
+     * read again, since their classes change without the directory's own
+     * timestamp moving.
+     */
+    void indexClasspath(ClassHierarchy hierarchy, List<Path> cp)
+        throws IOException {
+        if (this == NONE) {
+            hierarchy.indexClasspath(cp);
+            return;
+        }
+        for (Path p : cp) {
+            if (!Files.isRegularFile(p)) {
+                hierarchy.indexClasspath(List.of(p));
+                continue;
+            }
+            Path key = p.toAbsolutePath().normalize();
+            String stamp = stamp(key);
+            Stamped s;
+            synchronized (classpath) {
+                s = classpath.get(key);
+            }
+            if (s == null || !s.stamp.equals(stamp)) {
+                s = new Stamped(stamp, ClassHierarchy.snapshot(key));
+                synchronized (classpath) {
+                    classpath.put(key, s);
+                }
+            }
+            hierarchy.addAll(s.snapshot);
+        }
+    }
+
+    private static String selectorKey(Config cfg) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(cfg.includeClassRegex).append('\n');
+        sb.append(cfg.excludeClassRegex).append('\n');
+        sb.append(cfg.includeMethodRegex).append('\n');
+        sb.append(cfg.excludeMethodRegex).append('\n');
+        sb.append(cfg.sampleRate).append(cfg.sampleRules).append('\n');
+        if (cfg.profilePath != null) {
+            Path p = cfg.profilePath.toAbsolutePath().normalize();
+            sb.append(p).append(' ').append(stamp(p)).append('\n');
+            sb.append(cfg.profileTopN).append(' ');
+            sb.append(cfg.profileMinMeanNs).append(' ');
+            sb.append(cfg.profileHotCalls).append(' ');
+            sb.append(cfg.profileHotSampleRate).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String stamp(Path p) throws IOException {
+        BasicFileAttributes a = Files.readAttributes(
+            p,
+            BasicFileAttributes.class
+        );
+        return a.size() + ":" + a.lastModifiedTime().toMillis();
+    }
+
+    private static <K, V> Map<K, V> lru(int entries) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > entries;
+            }
+        };
+    }
+
+    private static final class Stamped {
+
+        final String stamp;
+        final ClassHierarchy.Snapshot snapshot;
+
+        Stamped(String stamp, ClassHierarchy.Snapshot snapshot) {
+            this.stamp = stamp;
+            this.snapshot = snapshot;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.arda.bctransform;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+final class RuntimeClasses {
+
+    static final String PACKAGE = "com/arda/bctransform/runtime/";
+
+    static Map<String, byte[]> load() throws IOException {
+        Map<String, byte[]> out = new TreeMap<>();
+        Path source;
+        try {
+            source = Path.of(
+                RuntimeClasses.class.getProtectionDomain()
+                    .getCodeSource()
+                    .getLocation()
+                    .toURI()
+            );
+        } catch (URISyntaxException e) {
+            throw new IOException("Cannot locate runtime classes", e);
+        }
+
+        if (Files.isDirectory(source)) {
+            Path pkg = source.resolve(PACKAGE);
+            try (Stream<Path> files = Files.walk(pkg)) {
+                for (Path f : (Iterable<Path>) files::iterator) {
+                    if (!f.toString().endsWith(".class")) continue;
+                    String rel = source.relativize(f).toString();
+                    out.put(
+                        rel.replace(f.getFileSystem().getSeparator(), "/"),
+                        Files.readAllBytes(f)
+                    );
+                }
+            }
+        } else {
+            try (ZipArchive jar = ZipArchive.open(source)) {
+                for (ZipArchive.Entry e : jar.entries()) {
+                    String n = e.getName();
+                    if (n.startsWith(PACKAGE) && n.endsWith(".class")) {
+                        out.put(n, jar.read(e));
+                    }
+                }
+            }
+        }
+        if (out.isEmpty()) throw new IOException(
+            "Runtime classes not found in " + source
+        );
+        return out;
+    }
+
+    private RuntimeClasses() {}
+}
@@ -0,0 +1,327 @@
+package com.arda.bctransform;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+public final class Selectors {
+
+    private static final String GLOB_PREFIX = "glob:";
+    private static final String REGEX_META = "\\^$.|?*+()[]{}";
+    // cap on memoized verdicts: Selectors outlive a run in the daemon
+    private static final int MAX_VERDICTS = 1 << 16;
+
+    private final Rule includeClass;
+    private final Rule excludeClass;
+    private final Rule includeMethod;
+    private final Rule excludeMethod;
+    private final List<SampleSelector> sampleRules;
+    private final int defaultSampleRate;
+    private final Profile profile;
+    private final ConcurrentHashMap<String, Boolean> classVerdicts =
+        new ConcurrentHashMap<>();
+
+    private Selectors(
+        Rule includeClass,
+        Rule excludeClass,
+        Rule includeMethod,
+        Rule excludeMethod,
+        List<SampleSelector> sampleRules,
+        int defaultSampleRate,
+        Profile profile
+    ) {
+        this.includeClass = includeClass;
+        this.excludeClass = excludeClass;
+        this.includeMethod = includeMethod;
+        this.excludeMethod = excludeMethod;
+        this.sampleRules = sampleRules;
+        this.defaultSampleRate = defaultSampleRate;
+        this.profile = profile;
+    }
+
+    /** Compiles the selectors and loads {@code cfg.profilePath}, if set. */
+    public static Selectors compile(Config cfg) {
+        Profile profile = null;
+        if (cfg.profilePath != null) {
+            try {
+                profile = Profile.load(cfg);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return new Selectors(
+            cfg.includeClassRegex == null
+                ? null
+                : Rule.of(
+                    true,
+                    Collections.singletonList(cfg.includeClassRegex)
+                ),
+            Rule.of(true, cfg.excludeClassRegex),
+            cfg.includeMethodRegex == null
+                ? null
+                : Rule.of(
+                    false,
+                    Collections.singletonList(cfg.includeMethodRegex)
+                ),
+            Rule.of(false, cfg.excludeMethodRegex),
+            SampleSelector.compile(cfg.sampleRules),
+            Math.max(1, cfg.sampleRate),
+            profile
+        );
+    }
+
+    /** The loaded profile, or null when selection is by pattern only. */
+    public Profile profile() {
+        return profile;
+    }
+
+    public boolean classEligible(String internalName) {
+        Boolean v = classVerdicts.get(internalName);
+        if (v == null) {
+            v = computeClassEligible(internalName);
+            if (classVerdicts.size() >= MAX_VERDICTS) classVerdicts.clear();
+            classVerdicts.putIfAbsent(internalName, v);
+        }
+        return v;
+    }
+
+    public boolean methodSelected(String name, String desc) {
+        String sig = name + desc;
+        if (includeMethod != null && !includeMethod.matches(sig)) return false;
+        return !excludeMethod.matches(sig);
+    }
+
+    /**
+     * The configured rate for a method; a profile that marks the method
+     * hot and cheap can only lower how often it is recorded.
+     */
+    public int sampleRate(String internalName, String name, String desc) {
+        int rate = ruleSampleRate(internalName, name, desc);
+        if (profile != null) {
+            Profile.Decision d = profile.decision(internalName, name, desc);
+            if (d != null) rate = Math.max(rate, d.sampleRate);
+        }
+        return rate;
+    }
+
+    private int ruleSampleRate(String internalName, String name, String desc) {
+        if (sampleRules.isEmpty()) return defaultSampleRate;
+        String sig = name + desc;
+        for (SampleSelector s : sampleRules) {
+            if (s.classRule != null && !s.classRule.matches(internalName)) {
+                continue;
+            }
+            if (s.methodRule != null && !s.methodRule.matches(sig)) continue;
+            return s.rate;
+        }
+        return defaultSampleRate;
+    }
+
+    private boolean computeClassEligible(String internalName) {
+        if (
+            internalName.endsWith("module-info") ||
+            internalName.endsWith("package-info")
+        ) return false;
+        if (
+            includeClass != null && !includeClass.matches(internalName)
+        ) return false;
+        return !excludeClass.matches(internalName);
+    }
+
+    private static final class SampleSelector {
+
+        final Rule classRule;
+        final Rule methodRule;
+        final int rate;
+
+        SampleSelector(Rule classRule, Rule methodRule, int rate) {
+            this.classRule = classRule;
+            this.methodRule = methodRule;
+            this.rate = rate;
+        }
+
+        static List<SampleSelector> compile(List<Config.SampleRule> rules) {
+            List<SampleSelector> out = new ArrayList<>();
+            for (Config.SampleRule r : rules) {
+                out.add(
+                    new SampleSelector(
+                        r.classRegex == null
+                            ? null
+                            : Rule.of(
+                                true,
+                                Collections.singletonList(r.classRegex)
+                            ),
+                        r.methodRegex == null
+                            ? null
+                            : Rule.of(
+                                false,
+                                Collections.singletonList(r.methodRegex)
+                            ),
+                        Math.max(1, r.rate)
+                    )
+                );
+            }
+            return out;
+        }
+    }
+
+    private static final class Rule {
+
+        private final boolean className;
+        private final PrefixTrie prefixes = new PrefixTrie();
+        private final Set<String> exact = new HashSet<>();
+        private final List<String> suffixes = new ArrayList<>();
+        private final List<String> contains = new ArrayList<>();
+        private final List<Pattern> regexes = new ArrayList<>();
+
+        private Rule(boolean className) {
+            this.className = className;
+        }
+
+        static Rule of(boolean className, List<String> patterns) {
+            Rule r = new Rule(className);
+            for (String p : patterns) {
+                if (p.startsWith(GLOB_PREFIX)) {
+                    r.addGlob(p.substring(GLOB_PREFIX.length()));
+                } else {
+                    r.addRegex(p);
+                }
+            }
+            return r;
+        }
+
+        boolean matches(String key) {
+            if (!exact.isEmpty() && exact.contains(key)) return true;
+            if (!prefixes.isEmpty() && prefixes.matchesPrefixOf(key)) {
+                return true;
+            }
+            for (String s : suffixes) if (key.endsWith(s)) return true;
+            for (String s : contains) if (key.contains(s)) return true;
+            if (regexes.isEmpty()) return false;
+            String subject = className ? key.replace('/', '.') : key;
+            for (Pattern p : regexes) {
+                if (p.matcher(subject).find()) return true;
+            }
+            return false;
+        }
+
+        private void addRegex(String re) {
+            int start = 0;
+            int end = re.length();
+            boolean anchorStart = re.startsWith("^");
+            if (anchorStart) start++;
+            boolean anchorEnd =
+                end > start &&
+                re.charAt(end - 1) == '$' &&
+                !escaped(re, end - 1);
+            if (anchorEnd) end--;
+            if (
+                end - start >= 2 &&
+                re.startsWith(".*", end - 2) &&
+                !escaped(re, end - 2)
+            ) {
+                end -= 2;
+                anchorEnd = false;
+            }
+            if (re.startsWith(".*", start)) {
+                start += 2;
+                anchorStart = false;
+            }
+
+            String lit = literal(re, start, end);
+            if (lit == null || !addLiteral(lit, anchorStart, anchorEnd)) {
+                regexes.add(Pattern.compile(re));
+            }
+        }
+
+        private void addGlob(String glob) {
+            int star = indexOfWildcard(glob);
+            if (star < 0) {
+                if (addLiteral(glob, true, true)) return;
+            } else if (
+                star == glob.length() - 2 && glob.endsWith("**")
+            ) {
+                if (addLiteral(glob.substring(0, star), true, false)) return;
+            }
+            regexes.add(Pattern.compile(globToRegex(glob)));
+        }
+
+        private boolean addLiteral(
+            String lit,
+            boolean anchorStart,
+            boolean anchorEnd
+        ) {
+            String key = lit;
+            if (className) {
+                if (key.indexOf('/') >= 0) return false;
+                key = key.replace('.', '/');
+            }
+            if (anchorStart && anchorEnd) exact.add(key);
+            else if (anchorStart) prefixes.add(key);
+            else if (anchorEnd) suffixes.add(key);
+            else contains.add(key);
+            return true;
+        }
+
+        private String globToRegex(String glob) {
+            String any = className ? "[^.]" : ".";
+            StringBuilder sb = new StringBuilder("^");
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*') {
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        sb.append(".*");
+                        i++;
+                    } else {
+                        sb.append(any).append('*');
+                    }
+                } else if (c == '?') {
+                    sb.append(any);
+                } else if (REGEX_META.indexOf(c) >= 0) {
+                    sb.append('\\').append(c);
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.append('$').toString();
+        }
+
+        private static int indexOfWildcard(String glob) {
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' || c == '?') return i;
+            }
+            return -1;
+        }
+
+        private static String literal(String re, int start, int end) {
+            StringBuilder sb = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) {
+                char c = re.charAt(i);
+                if (c == '\\') {
+                    if (i + 1 >= end) return null;
+                    char n = re.charAt(++i);
+                    if (Character.isLetterOrDigit(n)) return null;
+                    sb.append(n);
+                } else if (REGEX_META.indexOf(c) >= 0) {
+                    return null;
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+
+        private static boolean escaped(String re, int i) {
+            int n = 0;
+            while (i - 1 - n >= 0 && re.charAt(i - 1 - n) == '\\') n++;
+            return (n & 1) == 1;
+        }
+    }
+}
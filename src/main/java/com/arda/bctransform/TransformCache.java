@@ -0,0 +1,332 @@
+package com.arda.bctransform;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+public final class TransformCache {
+
+    private static final int MAGIC = 0x42435444;
+    private static final String SUFFIX = ".bin";
+    private static final double EVICT_TO = 0.9;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> DIGESTS =
+        ThreadLocal.withInitial(TransformCache::sha256);
+
+    private final Path dir;
+    private final long maxBytes;
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private TransformCache(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public static TransformCache open(Path dir, long maxBytes)
+        throws IOException {
+        Files.createDirectories(dir);
+        TransformCache cache = new TransformCache(dir, maxBytes);
+        for (CachedFile f : cache.listFiles()) {
+            cache.totalBytes.addAndGet(f.size);
+        }
+        return cache;
+    }
+
+    /**
+     * Everything besides the class bytes that decides a class's output.
+     * The class hierarchy is not part of it: each entry carries the
+     * supertype answers its frames were computed from instead, so adding
+     * an unrelated class does not invalidate the whole cache.
+     */
+    public static byte[] salt(Config cfg, Profile profile) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Main.VERSION).append('\n');
+        sb.append(cfg.entryLog).append('\n');
+        sb.append(cfg.timing).append('\n');
+        sb.append(cfg.logger).append('\n');
+        sb.append(cfg.logLevel).append('\n');
+        sb.append(cfg.sink).append('\n');
+        sb.append(cfg.logPrefix).append('\n');
+        sb.append(cfg.includeClassRegex).append('\n');
+        sb.append(cfg.excludeClassRegex).append('\n');
+        sb.append(cfg.includeMethodRegex).append('\n');
+        sb.append(cfg.excludeMethodRegex).append('\n');
+        sb.append(cfg.requireAnnotationDesc).append('\n');
+        sb.append(cfg.switchable).append('\n');
+        sb.append(cfg.sampleRate).append(cfg.sampleRules).append('\n');
+        sb.append(cfg.minInstructions).append('\n');
+        sb.append(cfg.skipTrivialAccessors).append('\n');
+        sb.append(cfg.profileTopN).append(' ').append(cfg.profileMinMeanNs);
+        sb.append(' ').append(cfg.profileHotCalls);
+        sb.append(' ').append(cfg.profileHotSampleRate).append('\n');
+        MessageDigest md = DIGESTS.get();
+        md.reset();
+        md.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+        if (profile != null) md.update(profile.digest());
+        return md.digest();
+    }
+
+    public String key(byte[] salt, byte[] classBytes) {
+        MessageDigest md = DIGESTS.get();
+        md.reset();
+        md.update(salt);
+        md.update(classBytes);
+        byte[] d = md.digest();
+        char[] out = new char[d.length * 2];
+        for (int i = 0; i < d.length; i++) {
+            out[i * 2] = HEX[(d[i] >> 4) & 0xF];
+            out[i * 2 + 1] = HEX[d[i] & 0xF];
+        }
+        return new String(out);
+    }
+
+    public Entry get(String key) {
+        Path f = fileFor(key);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(f);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            Entry entry = decode(data);
+            Files.setLastModifiedTime(
+                f,
+                FileTime.fromMillis(System.currentTimeMillis())
+            );
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            try {
+                if (Files.deleteIfExists(f)) {
+                    totalBytes.addAndGet(-data.length);
+                }
+            } catch (IOException ignored) {}
+            return null;
+        }
+    }
+
+    public void put(String key, Entry entry) throws IOException {
+        byte[] data = encode(entry);
+        Path f = fileFor(key);
+        Files.createDirectories(f.getParent());
+        Path tmp = Files.createTempFile(f.getParent(), key, ".tmp");
+        try {
+            Files.write(tmp, data);
+            try {
+                Files.move(tmp, f, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        if (totalBytes.addAndGet(data.length) > maxBytes) evict();
+    }
+
+    private synchronized void evict() throws IOException {
+        if (totalBytes.get() <= maxBytes) return;
+        List<CachedFile> files = listFiles();
+        files.sort(Comparator.comparing((CachedFile c) -> c.lastUsed));
+        long total = 0;
+        for (CachedFile c : files) total += c.size;
+        long target = (long) (maxBytes * EVICT_TO);
+        for (CachedFile c : files) {
+            if (total <= target) break;
+            if (Files.deleteIfExists(c.path)) total -= c.size;
+        }
+        totalBytes.set(total);
+    }
+
+    private List<CachedFile> listFiles() throws IOException {
+        List<CachedFile> out = new ArrayList<>();
+        try (Stream<Path> s = Files.walk(dir, 2)) {
+            for (Path p : (Iterable<Path>) s::iterator) {
+                if (!p.getFileName().toString().endsWith(SUFFIX)) continue;
+                try {
+                    out.add(
+                        new CachedFile(
+                            p,
+                            Files.size(p),
+                            Files.getLastModifiedTime(p)
+                        )
+                    );
+                } catch (NoSuchFileException raced) {}
+            }
+        }
+        return out;
+    }
+
+    private Path fileFor(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(
+            key.substring(2) + SUFFIX
+        );
+    }
+
+    private static byte[] encode(Entry e) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(
+            e.bytes == null ? 64 : e.bytes.length + 256
+        );
+        DataOutputStream out = new DataOutputStream(bos);
+        TransformReport r = e.report;
+        out.writeInt(MAGIC);
+        out.writeInt(r.transformedClasses);
+        out.writeInt(r.transformedMethods);
+        out.writeInt(r.fastPathClasses);
+        out.writeInt(r.methods.size());
+        for (TransformReport.TransformedMethod m : r.methods) {
+            out.writeUTF(m.owner);
+            out.writeUTF(m.name);
+            out.writeUTF(m.desc);
+            out.writeBoolean(m.entryLog);
+            out.writeBoolean(m.timing);
+            out.writeInt(m.sampleRate);
+            out.writeBoolean(m.reason != null);
+            if (m.reason != null) out.writeUTF(m.reason);
+        }
+        out.writeInt(e.supertypes.size());
+        for (Map.Entry<String, String> a : e.supertypes.entrySet()) {
+            out.writeUTF(a.getKey());
+            out.writeUTF(a.getValue());
+        }
+        out.writeInt(r.skipped.size());
+        for (TransformReport.SkippedMethod m : r.skipped) {
+            out.writeUTF(m.owner);
+            out.writeUTF(m.name);
+            out.writeUTF(m.desc);
+            out.writeUTF(m.reason);
+        }
+        if (e.bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(e.bytes.length);
+            out.write(e.bytes);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static Entry decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(data)
+        );
+        if (in.readInt() != MAGIC) throw new IOException("Bad cache entry");
+        TransformReport r = new TransformReport();
+        r.transformedClasses = in.readInt();
+        r.transformedMethods = in.readInt();
+        r.fastPathClasses = in.readInt();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            TransformReport.TransformedMethod m =
+                new TransformReport.TransformedMethod(
+                    in.readUTF(),
+                    in.readUTF(),
+                    in.readUTF(),
+                    in.readBoolean(),
+                    in.readBoolean(),
+                    in.readInt()
+                );
+            if (in.readBoolean()) m.reason = in.readUTF();
+            r.methods.add(m);
+        }
+        n = in.readInt();
+        Map<String, String> supertypes = new HashMap<>();
+        for (int i = 0; i < n; i++) supertypes.put(in.readUTF(), in.readUTF());
+        n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            r.skipped.add(
+                new TransformReport.SkippedMethod(
+                    in.readUTF(),
+                    in.readUTF(),
+                    in.readUTF(),
+                    in.readUTF()
+                )
+            );
+        }
+        r.skippedMethods = n;
+        int len = in.readInt();
+        byte[] bytes = null;
+        if (len >= 0) {
+            bytes = new byte[len];
+            in.readFully(bytes);
+        }
+        return new Entry(bytes, r, supertypes);
+    }
+
+    /** Key for one getCommonSuperClass query; ';' is not legal in names. */
+    static String supertypeQuery(String type1, String type2) {
+        return type1 + ';' + type2;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static final class Entry {
+
+        final byte[] bytes;
+        final TransformReport report;
+        // getCommonSuperClass answers the frames were computed from;
+        // null when the entry is not cached
+        final Map<String, String> supertypes;
+
+        Entry(
+            byte[] bytes,
+            TransformReport report,
+            Map<String, String> supertypes
+        ) {
+            this.bytes = bytes;
+            this.report = report;
+            this.supertypes = supertypes;
+        }
+
+        /** Whether {@code hierarchy} still gives every recorded answer. */
+        boolean validFor(ClassHierarchy hierarchy) {
+            for (Map.Entry<String, String> a : supertypes.entrySet()) {
+                String q = a.getKey();
+                int sep = q.indexOf(';');
+                String common = hierarchy.getCommonSuperClass(
+                    q.substring(0, sep),
+                    q.substring(sep + 1)
+                );
+                if (!common.equals(a.getValue())) return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class CachedFile {
+
+        final Path path;
+        final long size;
+        final FileTime lastUsed;
+
+        CachedFile(Path path, long size, FileTime lastUsed) {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
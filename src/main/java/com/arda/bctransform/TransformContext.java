@@ -0,0 +1,29 @@
+package com.arda.bctransform;
+
+public final class TransformContext {
+
+    public final Config cfg;
+    public final Selectors selectors;
+    public final ClassHierarchy hierarchy;
+    public final TransformCache cache;
+    public final TransformMetrics metrics;
+    // null without --max-inflight-bytes
+    final ByteBudget inflight;
+    public byte[] cacheSalt = new byte[0];
+
+    public TransformContext(
+        Config cfg,
+        Selectors selectors,
+        ClassHierarchy hierarchy,
+        TransformCache cache
+    ) {
+        this.cfg = cfg;
+        this.selectors = selectors;
+        this.hierarchy = hierarchy;
+        this.cache = cache;
+        this.metrics = new TransformMetrics(cfg.stats);
+        this.inflight = cfg.maxInflightBytes > 0
+            ? new ByteBudget(cfg.maxInflightBytes)
+            : null;
+    }
+}
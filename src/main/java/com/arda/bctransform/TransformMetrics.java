@@ -0,0 +1,182 @@
+package com.arda.bctransform;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Phase timers and counters for one transform run, collected when
+ * {@code --stats} is on and a no-op otherwise. Phase times are summed over
+ * every thread that did the work, so with a worker pool they can add up to
+ * more than {@link #getWallNs()}. Batch runs share one instance across all
+ * jars.
+ */
+public final class TransformMetrics {
+
+    static final int READ = 0;
+    static final int INFLATE = 1;
+    static final int PARSE = 2;
+    static final int TRANSFORM = 3;
+    static final int FRAMES = 4;
+    static final int DEFLATE = 5;
+    static final int WRITE = 6;
+    static final int REPORT = 7;
+
+    private static final String[] PHASES = {
+        "read",
+        "inflate",
+        "parse",
+        "transform",
+        "frames",
+        "deflate",
+        "write",
+        "report",
+    };
+
+    public static final int SLOWEST = 10;
+
+    private final boolean enabled;
+    private final LongAdder[] nanos = new LongAdder[PHASES.length];
+    private final LongAdder classes = new LongAdder();
+    private final PriorityQueue<ClassTiming> slowest = new PriorityQueue<>(
+        Comparator.comparingLong((ClassTiming c) -> c.nanos)
+    );
+    private long wallNs;
+    private long bytesIn;
+    private long bytesOut;
+
+    public TransformMetrics(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < nanos.length; i++) nanos[i] = new LongAdder();
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /** A start time for {@link #lap}, or 0 when disabled. */
+    long now() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Charges the time since {@code since} to {@code phase}. */
+    long lap(int phase, long since) {
+        if (!enabled) return 0;
+        long t = System.nanoTime();
+        nanos[phase].add(t - since);
+        return t;
+    }
+
+    void add(int phase, long ns) {
+        if (enabled) nanos[phase].add(ns);
+    }
+
+    /** Records one class's total latency across its worker phases. */
+    void classDone(String entryName, long ns, int bytes) {
+        if (!enabled) return;
+        classes.increment();
+        synchronized (slowest) {
+            if (slowest.size() < SLOWEST) {
+                slowest.add(new ClassTiming(entryName, ns, bytes));
+            } else if (ns > slowest.peek().nanos) {
+                slowest.poll();
+                slowest.add(new ClassTiming(entryName, ns, bytes));
+            }
+        }
+    }
+
+    void finish(long wallNs, long bytesIn, long bytesOut) {
+        this.wallNs = wallNs;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+    }
+
+    public long getWallNs() {
+        return wallNs;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getClasses() {
+        return classes.sum();
+    }
+
+    public Map<String, Long> getPhasesNs() {
+        Map<String, Long> out = new LinkedHashMap<>();
+        for (int i = 0; i < PHASES.length; i++) {
+            out.put(PHASES[i], nanos[i].sum());
+        }
+        return out;
+    }
+
+    /** Slowest classes first. */
+    public List<ClassTiming> getSlowest() {
+        List<ClassTiming> out;
+        synchronized (slowest) {
+            out = new ArrayList<>(slowest);
+        }
+        out.sort(
+            Comparator.comparingLong((ClassTiming c) -> c.nanos).reversed()
+        );
+        return out;
+    }
+
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(
+            String.format(
+                "Wall %.1f ms, %d classes, %d bytes in, %d bytes out%n",
+                wallNs / 1e6,
+                getClasses(),
+                bytesIn,
+                bytesOut
+            )
+        );
+        sb.append("Phases (ms, summed over threads):\n");
+        for (Map.Entry<String, Long> e : getPhasesNs().entrySet()) {
+            sb.append(
+                String.format(
+                    "  %-10s %10.1f%n",
+                    e.getKey(),
+                    e.getValue() / 1e6
+                )
+            );
+        }
+        List<ClassTiming> top = getSlowest();
+        if (!top.isEmpty()) sb.append("Slowest classes (ms):\n");
+        for (ClassTiming c : top) {
+            sb.append(
+                String.format(
+                    "  %10.2f  %s (%d bytes)%n",
+                    c.nanos / 1e6,
+                    c.name,
+                    c.bytes
+                )
+            );
+        }
+        return sb.toString();
+    }
+
+    public static final class ClassTiming {
+
+        public final String name;
+        public final long nanos;
+        public final int bytes;
+
+        ClassTiming(String name, long nanos, int bytes) {
+            this.name = name;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.arda.bctransform;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -8,7 +9,58 @@ public final class TransformReport {
     public int scannedClasses = 0;
     public int transformedClasses = 0;
     public int transformedMethods = 0;
+    public int fastPathClasses = 0;
+    public int cacheHits = 0;
+    public int cacheMisses = 0;
+    public int nestedJars = 0;
+    public int skippedMethods = 0;
     public final List<TransformedMethod> methods = new ArrayList<>();
+    public final List<SkippedMethod> skipped = new ArrayList<>();
+    public List<String> unresolvedTypes = new ArrayList<>();
+
+    /**
+     * Run-wide phase metrics, present only with {@code --stats}. The
+     * "report" phase is still zero here, since it is measured while this
+     * report is being written; the printed summary includes it.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public TransformMetrics metrics = null;
+
+    private ReportStream stream;
+    private boolean countsOnly = false;
+
+    /** Sends merged methods to {@code s} instead of keeping them. */
+    void streamTo(ReportStream s) {
+        this.stream = s;
+    }
+
+    ReportStream stream() {
+        return stream;
+    }
+
+    /** Drops merged methods, for runs that write no report. */
+    void countsOnly() {
+        this.countsOnly = true;
+    }
+
+    public void merge(TransformReport other) {
+        scannedClasses += other.scannedClasses;
+        transformedClasses += other.transformedClasses;
+        transformedMethods += other.transformedMethods;
+        fastPathClasses += other.fastPathClasses;
+        cacheHits += other.cacheHits;
+        cacheMisses += other.cacheMisses;
+        nestedJars += other.nestedJars;
+        skippedMethods += other.skippedMethods;
+        if (countsOnly) return;
+        if (stream == null) {
+            methods.addAll(other.methods);
+            skipped.addAll(other.skipped);
+        } else {
+            stream.methods(other.methods);
+            stream.skipped(other.skipped);
+        }
+    }
 
     public static final class TransformedMethod {
 
@@ -17,6 +69,11 @@ public final class TransformReport {
         public String desc;
         public boolean entryLog;
         public boolean timing;
+        public int sampleRate = 1;
+
+        /** Why a profile selected this method; absent without a profile. */
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public String reason = null;
 
         public TransformedMethod() {}
 
@@ -33,5 +90,39 @@ public final class TransformReport {
             this.entryLog = entryLog;
             this.timing = timing;
         }
+
+        public TransformedMethod(
+            String owner,
+            String name,
+            String desc,
+            boolean entryLog,
+            boolean timing,
+            int sampleRate
+        ) {
+            this(owner, name, desc, entryLog, timing);
+            this.sampleRate = sampleRate;
+        }
+    }
+
+    public static final class SkippedMethod {
+
+        public String owner;
+        public String name;
+        public String desc;
+        public String reason;
+
+        public SkippedMethod() {}
+
+        public SkippedMethod(
+            String owner,
+            String name,
+            String desc,
+            String reason
+        ) {
+            this.owner = owner;
+            this.name = name;
+            this.desc = desc;
+            this.reason = reason;
+        }
     }
 }
@@ -0,0 +1,371 @@
+package com.arda.bctransform;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+public final class ZipArchive implements Closeable {
+
+    static final int LOC_SIG = 0x04034b50;
+    static final int CEN_SIG = 0x02014b50;
+    static final int END_SIG = 0x06054b50;
+    static final int ZIP64_END_SIG = 0x06064b50;
+    static final int ZIP64_LOC_SIG = 0x07064b50;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int LOC_HEADER = 30;
+    private static final int CEN_HEADER = 46;
+    private static final int END_HEADER = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    private final FileChannel channel;
+    private final ByteBuffer mapped;
+    private final long size;
+    private final List<Entry> entries;
+    private Path spill;
+
+    private ZipArchive(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.mapped = size <= Integer.MAX_VALUE
+            ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+            : null;
+        this.entries = Collections.unmodifiableList(readCentralDirectory());
+    }
+
+    private ZipArchive(ByteBuffer data) throws IOException {
+        this.channel = null;
+        this.mapped = data.slice();
+        this.size = mapped.capacity();
+        this.entries = Collections.unmodifiableList(readCentralDirectory());
+    }
+
+    public static ZipArchive open(Path path) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new ZipArchive(ch);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /** Opens an archive held in memory; the buffer is not copied. */
+    public static ZipArchive open(ByteBuffer data) throws IOException {
+        return new ZipArchive(data);
+    }
+
+    /**
+     * Opens a jar stored inside this archive. A STORED entry is read in
+     * place from this archive's mapping. A compressed one is inflated into
+     * memory when its size is at most {@code memoryLimit} bytes, otherwise
+     * into a temp file that is deleted when the returned archive closes.
+     */
+    public ZipArchive openNested(Entry e, long memoryLimit)
+        throws IOException {
+        if (e.method == STORED) return new ZipArchive(rawData(e));
+        if (e.size <= memoryLimit) {
+            return new ZipArchive(ByteBuffer.wrap(read(e)));
+        }
+        Path tmp = Files.createTempFile("bctransform-nested", ".jar");
+        try {
+            inflateTo(e, tmp);
+            ZipArchive nested = open(tmp);
+            nested.spill = tmp;
+            return nested;
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    public Entry find(String name) {
+        for (Entry e : entries) {
+            if (e.name.equalsIgnoreCase(name)) return e;
+        }
+        return null;
+    }
+
+    public ByteBuffer rawData(Entry e) throws IOException {
+        if (e.dataOffset < 0) {
+            ByteBuffer loc = region(e.localHeaderOffset, LOC_HEADER);
+            if (loc.getInt(0) != LOC_SIG) throw new ZipException(
+                "Bad local header for " + e.name
+            );
+            e.dataOffset =
+                e.localHeaderOffset +
+                LOC_HEADER +
+                u16(loc, 26) +
+                u16(loc, 28);
+        }
+        return region(e.dataOffset, Math.toIntExact(e.compressedSize));
+    }
+
+    public byte[] read(Entry e) throws IOException {
+        return read(e, Math.toIntExact(e.size));
+    }
+
+    public byte[] read(Entry e, int limit) throws IOException {
+        ByteBuffer raw = rawData(e);
+        byte[] out = new byte[(int) Math.min(e.size, limit)];
+        if (e.method == STORED) {
+            raw.get(out);
+            return out;
+        }
+        if (e.method != DEFLATED) throw new ZipException(
+            "Unsupported compression method " + e.method + " for " + e.name
+        );
+        Inflater inf = new Inflater(true);
+        try {
+            inf.setInput(raw);
+            int n = 0;
+            while (n < out.length && !inf.finished()) {
+                int r = inf.inflate(out, n, out.length - n);
+                if (r == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != out.length) throw new ZipException(
+                "Truncated entry " + e.name
+            );
+            return out;
+        } catch (DataFormatException ex) {
+            throw new ZipException(
+                "Corrupt entry " + e.name + ": " + ex.getMessage()
+            );
+        } finally {
+            inf.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+        if (spill != null) Files.deleteIfExists(spill);
+    }
+
+    private void inflateTo(Entry e, Path target) throws IOException {
+        if (e.method != DEFLATED) throw new ZipException(
+            "Unsupported compression method " + e.method + " for " + e.name
+        );
+        Inflater inf = new Inflater(true);
+        try (
+            FileChannel out = FileChannel.open(
+                target,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+            )
+        ) {
+            inf.setInput(rawData(e));
+            byte[] chunk = new byte[64 * 1024];
+            long n = 0;
+            while (!inf.finished()) {
+                int r = inf.inflate(chunk);
+                if (r == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    break;
+                }
+                ByteBuffer b = ByteBuffer.wrap(chunk, 0, r);
+                while (b.hasRemaining()) out.write(b);
+                n += r;
+            }
+            if (n != e.size) throw new ZipException(
+                "Truncated entry " + e.name
+            );
+        } catch (DataFormatException ex) {
+            throw new ZipException(
+                "Corrupt entry " + e.name + ": " + ex.getMessage()
+            );
+        } finally {
+            inf.end();
+        }
+    }
+
+    private ByteBuffer region(long pos, int len) throws IOException {
+        if (pos < 0 || pos + len > size) throw new ZipException(
+            "Entry data out of bounds"
+        );
+        ByteBuffer b;
+        if (mapped != null) {
+            b = mapped.duplicate();
+            b.position((int) pos);
+            b.limit((int) pos + len);
+            b = b.slice();
+        } else {
+            b = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+        }
+        return b.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        int tailLen = (int) Math.min(size, END_HEADER + MAX_COMMENT);
+        ByteBuffer tail = region(size - tailLen, tailLen);
+        int end = -1;
+        for (int i = tailLen - END_HEADER; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIG) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) throw new ZipException("Not a zip file");
+
+        long count = u16(tail, end + 10);
+        long cenSize = u32(tail, end + 12);
+        long cenOffset = u32(tail, end + 16);
+
+        long endPos = size - tailLen + end;
+        if (
+            (count == 0xFFFF ||
+                cenSize == ZIP64_MAGIC ||
+                cenOffset == ZIP64_MAGIC) &&
+            endPos >= 20
+        ) {
+            ByteBuffer loc = region(endPos - 20, 20);
+            if (loc.getInt(0) == ZIP64_LOC_SIG) {
+                ByteBuffer z = region(loc.getLong(8), 56);
+                if (z.getInt(0) != ZIP64_END_SIG) throw new ZipException(
+                    "Bad zip64 end record"
+                );
+                count = z.getLong(32);
+                cenSize = z.getLong(40);
+                cenOffset = z.getLong(48);
+            }
+        }
+
+        ByteBuffer cen = region(cenOffset, Math.toIntExact(cenSize));
+        List<Entry> out = new ArrayList<>((int) Math.min(count, 1 << 20));
+        int p = 0;
+        for (long i = 0; i < count; i++) {
+            if (cen.getInt(p) != CEN_SIG) throw new ZipException(
+                "Bad central directory entry"
+            );
+            Entry e = new Entry();
+            e.versionMadeBy = u16(cen, p + 4);
+            e.flags = u16(cen, p + 8);
+            e.method = u16(cen, p + 10);
+            e.dosTime = cen.getInt(p + 12);
+            e.crc = u32(cen, p + 16);
+            e.compressedSize = u32(cen, p + 20);
+            e.size = u32(cen, p + 24);
+            int nameLen = u16(cen, p + 28);
+            int extraLen = u16(cen, p + 30);
+            int commentLen = u16(cen, p + 32);
+            e.externalAttrs = cen.getInt(p + 38);
+            e.localHeaderOffset = u32(cen, p + 42);
+
+            byte[] name = new byte[nameLen];
+            cen.position(p + CEN_HEADER);
+            cen.get(name);
+            e.nameBytes = name;
+            e.name = new String(name, StandardCharsets.UTF_8);
+            e.extra = readExtra(cen, p + CEN_HEADER + nameLen, extraLen, e);
+
+            p += CEN_HEADER + nameLen + extraLen + commentLen;
+            out.add(e);
+        }
+        return out;
+    }
+
+    private static byte[] readExtra(
+        ByteBuffer cen,
+        int off,
+        int len,
+        Entry e
+    ) {
+        if (len == 0) return null;
+        ByteBuffer kept = ByteBuffer.allocate(len).order(
+            ByteOrder.LITTLE_ENDIAN
+        );
+        int p = off;
+        int end = off + len;
+        while (p + 4 <= end) {
+            int id = u16(cen, p);
+            int sz = u16(cen, p + 2);
+            if (p + 4 + sz > end) break;
+            if (id == ZIP64_EXTRA_ID) {
+                int q = p + 4;
+                if (e.size == ZIP64_MAGIC && q + 8 <= p + 4 + sz) {
+                    e.size = cen.getLong(q);
+                    q += 8;
+                }
+                if (e.compressedSize == ZIP64_MAGIC && q + 8 <= p + 4 + sz) {
+                    e.compressedSize = cen.getLong(q);
+                    q += 8;
+                }
+                if (e.localHeaderOffset == ZIP64_MAGIC && q + 8 <= p + 4 + sz) {
+                    e.localHeaderOffset = cen.getLong(q);
+                }
+            } else {
+                for (int i = 0; i < 4 + sz; i++) kept.put(cen.get(p + i));
+            }
+            p += 4 + sz;
+        }
+        if (kept.position() == 0) return null;
+        byte[] out = new byte[kept.position()];
+        kept.flip();
+        kept.get(out);
+        return out;
+    }
+
+    static int u16(ByteBuffer b, int i) {
+        return b.getShort(i) & 0xFFFF;
+    }
+
+    static long u32(ByteBuffer b, int i) {
+        return b.getInt(i) & ZIP64_MAGIC;
+    }
+
+    public static final class Entry {
+
+        String name;
+        byte[] nameBytes;
+        int versionMadeBy;
+        int flags;
+        int method;
+        int dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        int externalAttrs;
+        long localHeaderOffset;
+        byte[] extra;
+        volatile long dataOffset = -1;
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+    }
+}
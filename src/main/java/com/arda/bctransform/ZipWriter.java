@@ -0,0 +1,390 @@
+package com.arda.bctransform;
+
+import static com.arda.bctransform.ZipArchive.CEN_SIG;
+import static com.arda.bctransform.ZipArchive.DEFLATED;
+import static com.arda.bctransform.ZipArchive.END_SIG;
+import static com.arda.bctransform.ZipArchive.LOC_SIG;
+import static com.arda.bctransform.ZipArchive.STORED;
+import static com.arda.bctransform.ZipArchive.ZIP64_END_SIG;
+import static com.arda.bctransform.ZipArchive.ZIP64_EXTRA_ID;
+import static com.arda.bctransform.ZipArchive.ZIP64_LOC_SIG;
+import static com.arda.bctransform.ZipArchive.ZIP64_MAGIC;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public final class ZipWriter implements Closeable {
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+        ThreadLocal.withInitial(() ->
+            new Deflater(Deflater.DEFAULT_COMPRESSION, true)
+        );
+
+    private final WritableByteChannel out;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024).order(
+        ByteOrder.LITTLE_ENDIAN
+    );
+    private final List<Written> written = new ArrayList<>();
+    private long position = 0;
+
+    public ZipWriter(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    public static Compressed compress(byte[] data, int method) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if (method == STORED) return new Compressed(
+            STORED,
+            data,
+            data.length,
+            crc.getValue(),
+            data.length
+        );
+
+        Deflater def = DEFLATERS.get();
+        def.reset();
+        def.setInput(data);
+        def.finish();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(
+            Math.max(64, data.length / 2)
+        );
+        byte[] chunk = new byte[8192];
+        while (!def.finished()) {
+            int n = def.deflate(chunk);
+            bos.write(chunk, 0, n);
+        }
+        byte[] bytes = bos.toByteArray();
+        return new Compressed(
+            DEFLATED,
+            bytes,
+            bytes.length,
+            crc.getValue(),
+            data.length
+        );
+    }
+
+    public void copyRaw(ZipArchive.Entry e, ByteBuffer raw) throws IOException {
+        Written w = new Written(e);
+        writeLocalHeader(w);
+        writeBuffer(raw);
+        written.add(w);
+    }
+
+    public void write(ZipArchive.Entry template, Compressed data)
+        throws IOException {
+        Written w = new Written(template);
+        w.method = data.method;
+        w.crc = data.crc;
+        w.compressedSize = data.length;
+        w.size = data.size;
+        writeLocalHeader(w);
+        writeBuffer(ByteBuffer.wrap(data.bytes, 0, data.length));
+        written.add(w);
+    }
+
+    /**
+     * Writes the contents of {@code data} under the template's name and
+     * method without holding them in memory. A DEFLATED entry is
+     * compressed into a second temp file first, because the local header
+     * needs the compressed size up front.
+     */
+    public void write(ZipArchive.Entry template, Path data)
+        throws IOException {
+        Written w = new Written(template);
+        CRC32 crc = new CRC32();
+        Path body = data;
+        try {
+            if (template.method == STORED) {
+                try (
+                    InputStream in = new CheckedInputStream(
+                        Files.newInputStream(data),
+                        crc
+                    )
+                ) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                }
+            } else {
+                w.method = DEFLATED;
+                body = Files.createTempFile("bctransform-deflate", ".bin");
+                Deflater def = DEFLATERS.get();
+                def.reset();
+                try (
+                    InputStream in = new CheckedInputStream(
+                        Files.newInputStream(data),
+                        crc
+                    );
+                    OutputStream out = new DeflaterOutputStream(
+                        Files.newOutputStream(body),
+                        def,
+                        64 * 1024
+                    )
+                ) {
+                    in.transferTo(out);
+                }
+            }
+            w.crc = crc.getValue();
+            w.size = Files.size(data);
+            w.compressedSize = Files.size(body);
+            writeLocalHeader(w);
+            flush();
+            try (
+                FileChannel in = FileChannel.open(
+                    body,
+                    StandardOpenOption.READ
+                )
+            ) {
+                long pos = 0;
+                while (pos < w.compressedSize) {
+                    pos += in.transferTo(pos, w.compressedSize - pos, out);
+                }
+            }
+            position += w.compressedSize;
+            written.add(w);
+        } finally {
+            if (body != data) Files.deleteIfExists(body);
+        }
+    }
+
+    public void add(String name, Compressed data) throws IOException {
+        Written w = new Written(
+            name.getBytes(StandardCharsets.UTF_8),
+            dosTime(System.currentTimeMillis())
+        );
+        w.method = data.method;
+        w.crc = data.crc;
+        w.compressedSize = data.length;
+        w.size = data.size;
+        writeLocalHeader(w);
+        writeBuffer(ByteBuffer.wrap(data.bytes, 0, data.length));
+        written.add(w);
+    }
+
+    @Override
+    public void close() throws IOException {
+        long cenOffset = position;
+        for (Written w : written) writeCentralHeader(w);
+        long cenSize = position - cenOffset;
+        long count = written.size();
+
+        boolean zip64 =
+            count >= 0xFFFF ||
+            cenOffset >= ZIP64_MAGIC ||
+            cenSize >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64End = position;
+            ensure(56 + 20);
+            buf.putInt(ZIP64_END_SIG);
+            buf.putLong(44);
+            buf.putShort((short) VERSION_ZIP64);
+            buf.putShort((short) VERSION_ZIP64);
+            buf.putInt(0);
+            buf.putInt(0);
+            buf.putLong(count);
+            buf.putLong(count);
+            buf.putLong(cenSize);
+            buf.putLong(cenOffset);
+            buf.putInt(ZIP64_LOC_SIG);
+            buf.putInt(0);
+            buf.putLong(zip64End);
+            buf.putInt(1);
+            position += 56 + 20;
+        }
+
+        ensure(22);
+        buf.putInt(END_SIG);
+        buf.putShort((short) 0);
+        buf.putShort((short) 0);
+        buf.putShort((short) Math.min(count, 0xFFFF));
+        buf.putShort((short) Math.min(count, 0xFFFF));
+        buf.putInt((int) Math.min(cenSize, ZIP64_MAGIC));
+        buf.putInt((int) Math.min(cenOffset, ZIP64_MAGIC));
+        buf.putShort((short) 0);
+        position += 22;
+        flush();
+    }
+
+    private void writeLocalHeader(Written w) throws IOException {
+        w.localHeaderOffset = position;
+        boolean zip64 =
+            w.size >= ZIP64_MAGIC || w.compressedSize >= ZIP64_MAGIC;
+        int extraLen =
+            (w.extra == null ? 0 : w.extra.length) + (zip64 ? 20 : 0);
+
+        ensure(30 + w.nameBytes.length + extraLen);
+        buf.putInt(LOC_SIG);
+        buf.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+        buf.putShort((short) w.flags);
+        buf.putShort((short) w.method);
+        buf.putInt(w.dosTime);
+        buf.putInt((int) w.crc);
+        buf.putInt((int) (zip64 ? ZIP64_MAGIC : w.compressedSize));
+        buf.putInt((int) (zip64 ? ZIP64_MAGIC : w.size));
+        buf.putShort((short) w.nameBytes.length);
+        buf.putShort((short) extraLen);
+        buf.put(w.nameBytes);
+        if (zip64) {
+            buf.putShort((short) ZIP64_EXTRA_ID);
+            buf.putShort((short) 16);
+            buf.putLong(w.size);
+            buf.putLong(w.compressedSize);
+        }
+        if (w.extra != null) buf.put(w.extra);
+        position += 30 + w.nameBytes.length + extraLen;
+    }
+
+    private void writeCentralHeader(Written w) throws IOException {
+        boolean bigSize = w.size >= ZIP64_MAGIC;
+        boolean bigCsize = w.compressedSize >= ZIP64_MAGIC;
+        boolean bigOffset = w.localHeaderOffset >= ZIP64_MAGIC;
+        int zip64Len =
+            (bigSize ? 8 : 0) + (bigCsize ? 8 : 0) + (bigOffset ? 8 : 0);
+        int extraLen =
+            (w.extra == null ? 0 : w.extra.length) +
+            (zip64Len > 0 ? 4 + zip64Len : 0);
+
+        ensure(46 + w.nameBytes.length + extraLen);
+        buf.putInt(CEN_SIG);
+        buf.putShort((short) w.versionMadeBy);
+        buf.putShort(
+            (short) (zip64Len > 0 ? VERSION_ZIP64 : VERSION_DEFAULT)
+        );
+        buf.putShort((short) w.flags);
+        buf.putShort((short) w.method);
+        buf.putInt(w.dosTime);
+        buf.putInt((int) w.crc);
+        buf.putInt((int) (bigCsize ? ZIP64_MAGIC : w.compressedSize));
+        buf.putInt((int) (bigSize ? ZIP64_MAGIC : w.size));
+        buf.putShort((short) w.nameBytes.length);
+        buf.putShort((short) extraLen);
+        buf.putShort((short) 0);
+        buf.putShort((short) 0);
+        buf.putShort((short) 0);
+        buf.putInt(w.externalAttrs);
+        buf.putInt((int) (bigOffset ? ZIP64_MAGIC : w.localHeaderOffset));
+        buf.put(w.nameBytes);
+        if (zip64Len > 0) {
+            buf.putShort((short) ZIP64_EXTRA_ID);
+            buf.putShort((short) zip64Len);
+            if (bigSize) buf.putLong(w.size);
+            if (bigCsize) buf.putLong(w.compressedSize);
+            if (bigOffset) buf.putLong(w.localHeaderOffset);
+        }
+        if (w.extra != null) buf.put(w.extra);
+        position += 46 + w.nameBytes.length + extraLen;
+    }
+
+    private static int dosTime(long millis) {
+        LocalDateTime t = LocalDateTime.ofInstant(
+            Instant.ofEpochMilli(millis),
+            ZoneId.systemDefault()
+        );
+        int date =
+            ((t.getYear() - 1980) << 9) |
+            (t.getMonthValue() << 5) |
+            t.getDayOfMonth();
+        int time =
+            (t.getHour() << 11) | (t.getMinute() << 5) | (t.getSecond() >> 1);
+        return (date << 16) | time;
+    }
+
+    private void writeBuffer(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        if (len <= buf.remaining()) {
+            buf.put(src);
+        } else {
+            flush();
+            while (src.hasRemaining()) out.write(src);
+        }
+        position += len;
+    }
+
+    private void ensure(int len) throws IOException {
+        if (buf.remaining() < len) flush();
+    }
+
+    private void flush() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) out.write(buf);
+        buf.clear();
+    }
+
+    public static final class Compressed {
+
+        final int method;
+        final byte[] bytes;
+        final int length;
+        final long crc;
+        final long size;
+
+        Compressed(int method, byte[] bytes, int length, long crc, long size) {
+            this.method = method;
+            this.bytes = bytes;
+            this.length = length;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+
+    private static final class Written {
+
+        final byte[] nameBytes;
+        final int versionMadeBy;
+        final int flags;
+        final int dosTime;
+        final int externalAttrs;
+        final byte[] extra;
+        int method;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+
+        Written(byte[] nameBytes, int dosTime) {
+            this.nameBytes = nameBytes;
+            this.versionMadeBy = VERSION_DEFAULT;
+            this.flags = FLAG_UTF8;
+            this.dosTime = dosTime;
+            this.externalAttrs = 0;
+            this.extra = null;
+        }
+
+        Written(ZipArchive.Entry e) {
+            this.nameBytes = e.nameBytes;
+            this.versionMadeBy = e.versionMadeBy;
+            this.flags = e.flags & ~FLAG_DATA_DESCRIPTOR;
+            this.dosTime = e.dosTime;
+            this.externalAttrs = e.externalAttrs;
+            this.extra = e.extra;
+            this.method = e.method;
+            this.crc = e.crc;
+            this.compressedSize = e.compressedSize;
+            this.size = e.size;
+        }
+    }
+}
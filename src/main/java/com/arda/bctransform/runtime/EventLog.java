@@ -0,0 +1,194 @@
+package com.arda.bctransform.runtime;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public final class EventLog {
+
+    public static final String FILE_PROPERTY = "bctransform.events.file";
+    public static final String CAPACITY_PROPERTY =
+        "bctransform.events.capacity";
+    public static final String POLICY_PROPERTY = "bctransform.events.policy";
+
+    static final String HEADER =
+        "# nanoTime\tthread\tphase\towner\tmethod\tdurationNs\n";
+
+    private static final int ENTER = 0;
+    private static final int EXIT = 1;
+    private static final int THROW = 2;
+    private static final String[] PHASES = { "enter", "exit", "throw" };
+
+    private static final int FIELDS = 4;
+    private static final int BATCH = 4096;
+    private static final long IDLE_PARK_NS = 1_000_000L;
+
+    private static final int CAPACITY = capacity();
+    private static final int MASK = CAPACITY - 1;
+    private static final boolean BLOCK =
+        "block".equalsIgnoreCase(System.getProperty(POLICY_PROPERTY));
+
+    // Slot i holds (id << 2 | phase, nanoTime, thread id, duration) at
+    // data[i * FIELDS]; seqs[i] publishes it (bounded MPSC queue, one
+    // sequence per slot).
+    private static final long[] DATA = new long[CAPACITY * FIELDS];
+    private static final AtomicLongArray SEQS = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    private static long head;
+    private static final OutputStream OUT;
+    private static final Thread DRAINER;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) SEQS.lazySet(i, i);
+        OUT = open();
+        DRAINER = new Thread(EventLog::drainLoop, "bctransform-events");
+        DRAINER.setDaemon(true);
+        DRAINER.start();
+        Runtime.getRuntime().addShutdownHook(
+            new Thread(EventLog::close, "bctransform-events-shutdown")
+        );
+    }
+
+    public static void enter(int id) {
+        offer(id, ENTER, 0L);
+    }
+
+    public static void record(int id, long nanos) {
+        offer(id, EXIT, nanos);
+    }
+
+    public static void recordThrow(int id, long nanos) {
+        offer(id, THROW, nanos);
+    }
+
+    public static long dropped() {
+        return DROPPED.get();
+    }
+
+    private static void offer(int id, int phase, long nanos) {
+        long now = System.nanoTime();
+        long thread = Thread.currentThread().getId();
+        int spins = 0;
+        while (true) {
+            long pos = TAIL.get();
+            int slot = (int) pos & MASK;
+            long diff = SEQS.get(slot) - pos;
+            if (diff == 0) {
+                if (!TAIL.compareAndSet(pos, pos + 1)) continue;
+                int d = slot * FIELDS;
+                DATA[d] = ((long) id << 2) | phase;
+                DATA[d + 1] = now;
+                DATA[d + 2] = thread;
+                DATA[d + 3] = nanos;
+                SEQS.lazySet(slot, pos + 1);
+                return;
+            }
+            if (diff > 0) continue;
+            if (!BLOCK) {
+                DROPPED.incrementAndGet();
+                return;
+            }
+            if (++spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.unpark(DRAINER);
+                LockSupport.parkNanos(10_000L);
+            }
+        }
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            int n;
+            try {
+                n = drain(BATCH);
+            } catch (IOException e) {
+                System.err.println("[bctransform] event log failed: " + e);
+                return;
+            }
+            if (n == 0) LockSupport.parkNanos(IDLE_PARK_NS);
+        }
+    }
+
+    private static synchronized int drain(int max) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int n = 0;
+        while (n < max) {
+            int slot = (int) head & MASK;
+            if (SEQS.get(slot) != head + 1) break;
+            int d = slot * FIELDS;
+            long key = DATA[d];
+            long now = DATA[d + 1];
+            long thread = DATA[d + 2];
+            long nanos = DATA[d + 3];
+            SEQS.lazySet(slot, head + CAPACITY);
+            head++;
+            n++;
+
+            int id = (int) (key >>> 2);
+            int phase = (int) key & 3;
+            sb.append(now).append('\t').append(thread).append('\t');
+            sb.append(PHASES[phase]).append('\t');
+            sb.append(MethodRegistry.owner(id)).append('\t');
+            sb.append(MethodRegistry.method(id)).append('\t');
+            if (phase != ENTER) sb.append(nanos);
+            sb.append('\n');
+        }
+        if (n > 0) {
+            OUT.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            OUT.flush();
+        }
+        return n;
+    }
+
+    private static void close() {
+        try {
+            while (drain(BATCH) > 0) {}
+            long lost = DROPPED.get();
+            if (lost > 0) {
+                OUT.write(
+                    ("# dropped\t" + lost + "\n").getBytes(
+                        StandardCharsets.UTF_8
+                    )
+                );
+            }
+            OUT.flush();
+        } catch (IOException e) {
+            System.err.println("[bctransform] event log failed: " + e);
+        }
+    }
+
+    private static OutputStream open() {
+        OutputStream out = System.err;
+        String file = System.getProperty(FILE_PROPERTY);
+        if (file != null) {
+            try {
+                out = new FileOutputStream(file);
+            } catch (IOException e) {
+                System.err.println(
+                    "[bctransform] cannot open " + file + ": " + e
+                );
+            }
+        }
+        out = new BufferedOutputStream(out, 1 << 16);
+        try {
+            out.write(HEADER.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ignored) {}
+        return out;
+    }
+
+    private static int capacity() {
+        int requested = Integer.getInteger(CAPACITY_PROPERTY, 1 << 16);
+        int c = Integer.highestOneBit(Math.max(2, requested));
+        return c < requested ? c << 1 : c;
+    }
+
+    private EventLog() {}
+}
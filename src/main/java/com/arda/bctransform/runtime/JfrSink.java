@@ -0,0 +1,68 @@
+package com.arda.bctransform.runtime;
+
+import jdk.jfr.EventType;
+
+/**
+ * Target of the {@code --logger jfr} probes. A probe calls
+ * {@link #isEnabled()} before doing anything else, so while no recording
+ * has the bctransform events enabled a call costs one static call and a
+ * field read: no clock read, no event object. Timed calls begin a
+ * {@link MethodEvent} on entry and end it on exit; JFR takes the start
+ * time and duration from its own clock. Owner and method names are
+ * constants in the instrumented code, so the probes need no method ids.
+ */
+public final class JfrSink {
+
+    private static final EventType METHOD = EventType.getEventType(
+        MethodEvent.class
+    );
+    private static final EventType ENTRY = EventType.getEventType(
+        MethodEntryEvent.class
+    );
+
+    public static boolean isEnabled() {
+        return METHOD.isEnabled() || ENTRY.isEnabled();
+    }
+
+    public static void enter(String owner, String method) {
+        if (!ENTRY.isEnabled()) return;
+        MethodEntryEvent e = new MethodEntryEvent();
+        e.owner = owner;
+        e.method = method;
+        e.commit();
+    }
+
+    /** A begun event, or null when method timing is not being recorded. */
+    public static MethodEvent begin() {
+        if (!METHOD.isEnabled()) return null;
+        MethodEvent e = new MethodEvent();
+        e.begin();
+        return e;
+    }
+
+    public static void end(MethodEvent e, String owner, String method) {
+        commit(e, owner, method, false);
+    }
+
+    public static void endThrow(MethodEvent e, String owner, String method) {
+        commit(e, owner, method, true);
+    }
+
+    private static void commit(
+        MethodEvent e,
+        String owner,
+        String method,
+        boolean thrown
+    ) {
+        if (e == null) return;
+        e.end();
+        // below the recording's threshold: skip filling in the fields
+        if (!e.shouldCommit()) return;
+        e.owner = owner;
+        e.method = method;
+        e.thrown = thrown;
+        e.commit();
+    }
+
+    private JfrSink() {}
+}
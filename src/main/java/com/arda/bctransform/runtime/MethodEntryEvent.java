@@ -0,0 +1,24 @@
+package com.arda.bctransform.runtime;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** Entry into a method instrumented with {@code --entry-log}. */
+@Name("com.arda.bctransform.MethodEntry")
+@Label("Method Entry")
+@Category("bctransform")
+@Description("Entry into a method instrumented with --entry-log")
+@StackTrace(false)
+public final class MethodEntryEvent extends Event {
+
+    @Label("Owner")
+    public String owner;
+
+    @Label("Method")
+    @Description("Name and descriptor")
+    public String method;
+}
@@ -0,0 +1,33 @@
+package com.arda.bctransform.runtime;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One timed call of an instrumented method. The event's own start time and
+ * duration carry the timing; a recording's {@code threshold} setting for
+ * {@code com.arda.bctransform.Method} drops short calls before their fields
+ * are filled in.
+ */
+@Name("com.arda.bctransform.Method")
+@Label("Method Call")
+@Category("bctransform")
+@Description("Call of a method instrumented with --timing")
+@StackTrace(false)
+public final class MethodEvent extends Event {
+
+    @Label("Owner")
+    public String owner;
+
+    @Label("Method")
+    @Description("Name and descriptor")
+    public String method;
+
+    @Label("Thrown")
+    @Description("The call ended by throwing")
+    public boolean thrown;
+}
@@ -0,0 +1,44 @@
+package com.arda.bctransform.runtime;
+
+import java.util.Arrays;
+
+public final class MethodRegistry {
+
+    private static String[] owners = new String[1024];
+    private static String[] methods = new String[1024];
+    private static volatile int count = 0;
+
+    public static synchronized int register(String owner, String[] names) {
+        int base = count;
+        int need = base + names.length;
+        if (need > owners.length) {
+            int cap = Math.max(need, owners.length * 2);
+            owners = Arrays.copyOf(owners, cap);
+            methods = Arrays.copyOf(methods, cap);
+        }
+        for (int i = 0; i < names.length; i++) {
+            owners[base + i] = owner;
+            methods[base + i] = names[i];
+        }
+        count = need;
+        return base;
+    }
+
+    public static int count() {
+        return count;
+    }
+
+    public static synchronized String owner(int id) {
+        return owners[id];
+    }
+
+    public static synchronized String method(int id) {
+        return methods[id];
+    }
+
+    public static synchronized String describe(int id) {
+        return owners[id] + "." + methods[id];
+    }
+
+    private MethodRegistry() {}
+}
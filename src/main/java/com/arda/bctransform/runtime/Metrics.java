@@ -0,0 +1,283 @@
+package com.arda.bctransform.runtime;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-method call counts, inclusive and self time, a latency histogram
+ * and throw counts, dumped as TSV at shutdown. Self time is inclusive
+ * time minus the inclusive time of instrumented callees: each thread
+ * keeps a stack of entry times and the callee time accumulated under
+ * each. A call whose probe is skipped (sampled out or switched off) is
+ * not on the stack, so its own time counts toward its caller's self.
+ */
+public final class Metrics {
+
+    public static final String FILE_PROPERTY = "bctransform.metrics.file";
+    public static final String INTERVAL_PROPERTY =
+        "bctransform.metrics.intervalSec";
+
+    static final String HEADER =
+        "# owner\tmethod\tcalls\ttotalNs\tselfNs\tmeanNs" +
+        "\tp50Ns\tp90Ns\tp99Ns\tmaxNs\tthrows\tentries";
+
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK = 1 << CHUNK_SHIFT;
+    private static final int MAX_CHUNKS = 4096;
+
+    // each id holds STRIPES line-aligned blocks, one per group of threads,
+    // so calls on different threads update different lines; the dump
+    // sums the blocks. Memory grows with the stripe count, hence the cap.
+    private static final int LINE = 8;
+    private static final int MAX_STRIPES = 8;
+    private static final int STRIPES = stripes();
+    private static final int BUCKETS = 64;
+    private static final int COUNT = 0;
+    private static final int SUM = 1;
+    private static final int SELF = 2;
+    private static final int THROWS = 3;
+    private static final int ENTRIES = 4;
+    private static final int HIST = 5;
+    private static final int STRIPE_SLOTS =
+        ((HIST + BUCKETS + LINE - 1) / LINE) * LINE;
+    private static final int SLOTS = STRIPES * STRIPE_SLOTS;
+
+    private static final AtomicReferenceArray<AtomicLongArray> CHUNKS =
+        new AtomicReferenceArray<>(MAX_CHUNKS);
+    private static final ThreadLocal<Frames> FRAMES = ThreadLocal.withInitial(
+        Frames::new
+    );
+
+    static {
+        Runtime.getRuntime().addShutdownHook(
+            new Thread(Metrics::dumpQuietly, "bctransform-metrics-shutdown")
+        );
+        long interval = Long.getLong(INTERVAL_PROPERTY, 0L);
+        if (interval > 0) {
+            Thread t = new Thread(
+                () -> {
+                    while (true) {
+                        try {
+                            Thread.sleep(interval * 1000L);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        dumpQuietly();
+                    }
+                },
+                "bctransform-metrics"
+            );
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public static void enter(int id) {
+        AtomicLongArray a = chunk(id);
+        if (a == null) return;
+        a.getAndIncrement(stripe(id) + ENTRIES);
+    }
+
+    /** Starts a timed call; the probe passes the result to {@link #exit}. */
+    public static long begin() {
+        long now = System.nanoTime();
+        FRAMES.get().push(now);
+        return now;
+    }
+
+    public static void exit(int id, long start) {
+        end(id, start, false);
+    }
+
+    public static void exitThrow(int id, long start) {
+        end(id, start, true);
+    }
+
+    /** Records a call timed elsewhere; its self time is not known. */
+    public static void record(int id, long nanos) {
+        AtomicLongArray a = chunk(id);
+        if (a == null) return;
+        add(a, stripe(id), nanos, nanos);
+    }
+
+    public static void recordThrow(int id, long nanos) {
+        AtomicLongArray a = chunk(id);
+        if (a == null) return;
+        int s = stripe(id);
+        add(a, s, nanos, nanos);
+        a.getAndIncrement(s + THROWS);
+    }
+
+    private static void end(int id, long start, boolean thrown) {
+        long nanos = System.nanoTime() - start;
+        long self = FRAMES.get().pop(start, nanos);
+        AtomicLongArray a = chunk(id);
+        if (a == null) return;
+        int s = stripe(id);
+        add(a, s, nanos, self);
+        if (thrown) a.getAndIncrement(s + THROWS);
+    }
+
+    public static String snapshot() {
+        StringWriter sw = new StringWriter();
+        sw.write(HEADER);
+        sw.write('\n');
+        long[] hist = new long[BUCKETS];
+        int n = MethodRegistry.count();
+        for (int id = 0; id < n; id++) {
+            AtomicLongArray a = CHUNKS.get(id >>> CHUNK_SHIFT);
+            if (a == null) continue;
+            int base = base(id);
+            long calls = 0;
+            long total = 0;
+            long self = 0;
+            long throwsCount = 0;
+            long entries = 0;
+            Arrays.fill(hist, 0);
+            for (int i = 0; i < STRIPES; i++) {
+                int s = base + i * STRIPE_SLOTS;
+                calls += a.get(s + COUNT);
+                total += a.get(s + SUM);
+                self += a.get(s + SELF);
+                throwsCount += a.get(s + THROWS);
+                entries += a.get(s + ENTRIES);
+                for (int b = 0; b < BUCKETS; b++) {
+                    hist[b] += a.get(s + HIST + b);
+                }
+            }
+            if (calls == 0 && entries == 0) continue;
+            sw.write(MethodRegistry.owner(id));
+            sw.write('\t');
+            sw.write(MethodRegistry.method(id));
+            sw.write('\t' + Long.toString(calls));
+            sw.write('\t' + Long.toString(total));
+            sw.write('\t' + Long.toString(self));
+            sw.write('\t' + Long.toString(calls == 0 ? 0 : total / calls));
+            sw.write('\t' + Long.toString(percentile(hist, calls, 0.50)));
+            sw.write('\t' + Long.toString(percentile(hist, calls, 0.90)));
+            sw.write('\t' + Long.toString(percentile(hist, calls, 0.99)));
+            sw.write('\t' + Long.toString(percentile(hist, calls, 1.0)));
+            sw.write('\t' + Long.toString(throwsCount));
+            sw.write('\t' + Long.toString(entries));
+            sw.write('\n');
+        }
+        return sw.toString();
+    }
+
+    public static void dump() throws IOException {
+        String text = snapshot();
+        String file = System.getProperty(FILE_PROPERTY);
+        if (file == null) {
+            PrintStream err = System.err;
+            err.print(text);
+            err.flush();
+            return;
+        }
+        Path target = Paths.get(file);
+        Path dir = target.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, "bctransform-metrics", ".tmp");
+        Files.write(tmp, text.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void dumpQuietly() {
+        try {
+            dump();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[bctransform] metrics dump failed: " + e);
+        }
+    }
+
+    private static void add(AtomicLongArray a, int s, long nanos, long self) {
+        a.getAndIncrement(s + COUNT);
+        a.getAndAdd(s + SUM, nanos);
+        a.getAndAdd(s + SELF, self);
+        int bucket = nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+        a.getAndIncrement(s + HIST + Math.min(bucket, BUCKETS - 1));
+    }
+
+    private static long percentile(long[] hist, long calls, double p) {
+        if (calls == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(calls * p));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += hist[b];
+            if (seen >= rank) return b == 0 ? 0 : (1L << b) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static int base(int id) {
+        return (id & (CHUNK - 1)) * SLOTS;
+    }
+
+    /** Start of the calling thread's block for {@code id}. */
+    private static int stripe(int id) {
+        int i = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        return base(id) + i * STRIPE_SLOTS;
+    }
+
+    /** Processor count rounded up to a power of two, at most MAX_STRIPES. */
+    private static int stripes() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int n = 1;
+        while (n < cpus && n < MAX_STRIPES) n <<= 1;
+        return n;
+    }
+
+    private static AtomicLongArray chunk(int id) {
+        int c = id >>> CHUNK_SHIFT;
+        if (c >= MAX_CHUNKS) return null;
+        AtomicLongArray a = CHUNKS.get(c);
+        if (a != null) return a;
+        a = new AtomicLongArray(CHUNK * SLOTS);
+        if (!CHUNKS.compareAndSet(c, null, a)) a = CHUNKS.get(c);
+        return a;
+    }
+
+    /** One thread's open timed calls: entry time and callee time. */
+    private static final class Frames {
+
+        long[] starts = new long[64];
+        long[] callees = new long[64];
+        int depth = 0;
+
+        void push(long start) {
+            if (depth == starts.length) {
+                starts = Arrays.copyOf(starts, depth * 2);
+                callees = Arrays.copyOf(callees, depth * 2);
+            }
+            starts[depth] = start;
+            callees[depth] = 0;
+            depth++;
+        }
+
+        /**
+         * Closes the call that began at {@code start} and returns its self
+         * time. Frames above it belong to callees an exception unwound
+         * past their exit probe; they are dropped, and their time stays
+         * in this call's self time.
+         */
+        long pop(long start, long nanos) {
+            while (depth > 0 && starts[depth - 1] > start) depth--;
+            long self = nanos;
+            if (depth > 0 && starts[depth - 1] == start) {
+                depth--;
+                self = Math.max(0, nanos - callees[depth]);
+            }
+            if (depth > 0) callees[depth - 1] += nanos;
+            return self;
+        }
+    }
+
+    private Metrics() {}
+}
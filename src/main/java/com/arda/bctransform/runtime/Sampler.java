@@ -0,0 +1,38 @@
+package com.arda.bctransform.runtime;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-method sample counters for classes that cannot get a counter field
+ * of their own (classes retransformed after they were loaded). Laid out
+ * like the per-class arrays: each chunk of ids has {@link #STRIPES} rows
+ * picked by thread id, padded apart by a cache line, so threads on
+ * different rows never write the same line.
+ */
+public final class Sampler {
+
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK = 1 << CHUNK_SHIFT;
+    private static final int MAX_CHUNKS = 4096;
+    private static final int STRIPES = 8;
+    private static final int ROW = CHUNK + 16;
+
+    private static final AtomicReferenceArray<int[]> CHUNKS =
+        new AtomicReferenceArray<>(MAX_CHUNKS);
+
+    /** Returns {@code count % rate} for this call; zero means sampled. */
+    public static int next(int id, int rate) {
+        int c = id >>> CHUNK_SHIFT;
+        if (c >= MAX_CHUNKS) return 0;
+        int[] counts = CHUNKS.get(c);
+        if (counts == null) {
+            counts = new int[STRIPES * ROW];
+            if (!CHUNKS.compareAndSet(c, null, counts)) counts = CHUNKS.get(c);
+        }
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        int n = ++counts[stripe * ROW + (id & (CHUNK - 1))];
+        return (rate & (rate - 1)) == 0 ? n & (rate - 1) : n % rate;
+    }
+
+    private Sampler() {}
+}
@@ -0,0 +1,195 @@
+package com.arda.bctransform.runtime;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Stdout probe sink that prints the same lines as the {@code stdout}
+ * logger without building a String per call. Each method's line prefixes
+ * are encoded once, when its class registers. A call formats its duration
+ * into a thread-local scratch array and copies prefix and digits into one
+ * shared direct buffer, which is written to fd 1 when full, every
+ * {@code bctransform.stdout.flushMs} (default 200) and at shutdown.
+ * Nothing is allocated per call. Lines are never split, but they are not
+ * ordered against the application's own {@code System.out} output.
+ * {@code bctransform.stdout.file} sends the lines to a file instead.
+ */
+public final class StdoutSink {
+
+    public static final String FILE_PROPERTY = "bctransform.stdout.file";
+    public static final String FLUSH_PROPERTY = "bctransform.stdout.flushMs";
+
+    static final String DEFAULT_PREFIX = "[BC]";
+
+    private static final int BUFFER = 64 * 1024;
+    private static final int MAX_DIGITS = 20;
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final FileChannel OUT = open();
+    private static final ByteBuffer BUF = ByteBuffer.allocateDirect(BUFFER);
+    private static final ThreadLocal<byte[]> SCRATCH =
+        ThreadLocal.withInitial(() -> new byte[MAX_DIGITS + 1]);
+
+    private static volatile Lines[] lines = new Lines[1024];
+
+    static {
+        Runtime.getRuntime().addShutdownHook(
+            new Thread(StdoutSink::flush, "bctransform-stdout-shutdown")
+        );
+        long interval = Long.getLong(FLUSH_PROPERTY, 200L);
+        if (interval > 0) {
+            Thread t = new Thread(
+                () -> {
+                    while (true) {
+                        try {
+                            Thread.sleep(interval);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        flush();
+                    }
+                },
+                "bctransform-stdout"
+            );
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /** Encodes the lines for ids {@code base .. base+count-1}. */
+    public static synchronized void define(
+        int base,
+        int count,
+        String prefix
+    ) {
+        Lines[] cur = lines;
+        int need = base + count;
+        if (need > cur.length) {
+            cur = Arrays.copyOf(cur, Math.max(need, cur.length * 2));
+        }
+        for (int id = base; id < base + count; id++) {
+            cur[id] = new Lines(prefix, MethodRegistry.describe(id));
+        }
+        lines = cur;
+    }
+
+    public static void enter(int id) {
+        byte[] line = lines(id).enter;
+        synchronized (BUF) {
+            put(line, 0, line.length);
+        }
+    }
+
+    public static void record(int id, long nanos) {
+        write(lines(id).exit, nanos);
+    }
+
+    public static void recordThrow(int id, long nanos) {
+        write(lines(id).thrown, nanos);
+    }
+
+    public static void flush() {
+        synchronized (BUF) {
+            drain();
+        }
+    }
+
+    private static void write(byte[] prefix, long nanos) {
+        byte[] digits = SCRATCH.get();
+        int start = format(nanos, digits);
+        int len = digits.length - start;
+        synchronized (BUF) {
+            if (BUF.remaining() < prefix.length + len) drain();
+            put(prefix, 0, prefix.length);
+            put(digits, start, len);
+        }
+    }
+
+    private static void put(byte[] b, int off, int len) {
+        if (BUF.remaining() < len) drain();
+        if (len <= BUF.remaining()) {
+            BUF.put(b, off, len);
+            return;
+        }
+        // longer than the whole buffer: only absurdly long signatures
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    /** Writes {@code v} and a newline right-aligned in {@code b}. */
+    private static int format(long v, byte[] b) {
+        int p = b.length;
+        b[--p] = '\n';
+        boolean neg = v < 0;
+        // negate toward negative so Long.MIN_VALUE works
+        long n = neg ? v : -v;
+        do {
+            b[--p] = (byte) ('0' - (n % 10));
+            n /= 10;
+        } while (n != 0);
+        if (neg) b[--p] = '-';
+        return p;
+    }
+
+    private static void drain() {
+        BUF.flip();
+        write(BUF);
+        BUF.clear();
+    }
+
+    private static void write(ByteBuffer b) {
+        try {
+            while (b.hasRemaining()) OUT.write(b);
+        } catch (IOException e) {
+            // stdout is gone; drop what was buffered
+        }
+    }
+
+    private static FileChannel open() {
+        String file = System.getProperty(FILE_PROPERTY);
+        if (file != null) {
+            try {
+                return new FileOutputStream(file, true).getChannel();
+            } catch (IOException e) {
+                System.err.println(
+                    "[bctransform] cannot open " + file + ", using stdout: " + e
+                );
+            }
+        }
+        return new FileOutputStream(FileDescriptor.out).getChannel();
+    }
+
+    private static Lines lines(int id) {
+        Lines[] cur = lines;
+        Lines l = id < cur.length ? cur[id] : null;
+        return l != null ? l : undefined(id);
+    }
+
+    private static synchronized Lines undefined(int id) {
+        Lines[] cur = lines;
+        if (id < cur.length && cur[id] != null) return cur[id];
+        define(id, 1, DEFAULT_PREFIX);
+        return lines[id];
+    }
+
+    private static final class Lines {
+
+        final byte[] enter;
+        final byte[] exit;
+        final byte[] thrown;
+
+        Lines(String prefix, String method) {
+            enter = (prefix + " enter " + method + "\n").getBytes(CHARSET);
+            exit = (prefix + " exit " + method + " durationNs=").getBytes(
+                CHARSET
+            );
+            thrown = (prefix + " throw " + method + " durationNs=").getBytes(
+                CHARSET
+            );
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.arda.bctransform.runtime;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import javax.management.ObjectName;
+
+/**
+ * Per-method on/off flags indexed by method id. Probes read {@link #flags}
+ * with a plain load; toggles come from the MBean registered as
+ * {@value #OBJECT_NAME}.
+ */
+public final class Switches implements SwitchesMBean {
+
+    public static final String OBJECT_NAME = "com.arda.bctransform:type=Probes";
+    public static final String DEFAULT_PROPERTY =
+        "bctransform.switches.default";
+
+    private static final boolean DEFAULT_ON = !"off".equalsIgnoreCase(
+        System.getProperty(DEFAULT_PROPERTY)
+    );
+
+    public static boolean[] flags = new boolean[0];
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new Switches(),
+                new ObjectName(OBJECT_NAME)
+            );
+        } catch (Exception | LinkageError e) {
+            System.err.println("[bctransform] probe MBean unavailable: " + e);
+        }
+    }
+
+    public static synchronized int register(String owner, String[] names) {
+        int base = MethodRegistry.register(owner, names);
+        ensure(base + names.length);
+        return base;
+    }
+
+    /** Grows the flag array before any probe can index past it. */
+    public static synchronized void ensure(int count) {
+        if (count <= flags.length) return;
+        int cap = Math.max(count, flags.length * 2);
+        boolean[] next = Arrays.copyOf(flags, Math.max(cap, 1024));
+        Arrays.fill(next, flags.length, next.length, DEFAULT_ON);
+        flags = next;
+    }
+
+    @Override
+    public int getMethodCount() {
+        return MethodRegistry.count();
+    }
+
+    @Override
+    public synchronized int getEnabledCount() {
+        int n = 0;
+        for (int id = 0, c = MethodRegistry.count(); id < c; id++) {
+            if (flags[id]) n++;
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized String[] getDisabledMethods() {
+        List<String> out = new ArrayList<>();
+        for (int id = 0, c = MethodRegistry.count(); id < c; id++) {
+            if (!flags[id]) out.add(MethodRegistry.describe(id));
+        }
+        return out.toArray(new String[0]);
+    }
+
+    @Override
+    public int enableAll() {
+        return set(id -> true, true);
+    }
+
+    @Override
+    public int disableAll() {
+        return set(id -> true, false);
+    }
+
+    @Override
+    public int setClassEnabled(String className, boolean enabled) {
+        return set(id -> MethodRegistry.owner(id).equals(className), enabled);
+    }
+
+    @Override
+    public int setMethodEnabled(
+        String className,
+        String method,
+        boolean enabled
+    ) {
+        return set(
+            id ->
+                MethodRegistry.owner(id).equals(className) &&
+                MethodRegistry.method(id).startsWith(method) &&
+                (method.indexOf('(') >= 0 ||
+                    MethodRegistry.method(id).charAt(method.length()) == '('),
+            enabled
+        );
+    }
+
+    @Override
+    public int setMatchingEnabled(String regex, boolean enabled) {
+        Pattern p = Pattern.compile(regex);
+        return set(
+            id -> p.matcher(MethodRegistry.describe(id)).find(),
+            enabled
+        );
+    }
+
+    private static synchronized int set(IdFilter filter, boolean enabled) {
+        int n = 0;
+        for (int id = 0, c = MethodRegistry.count(); id < c; id++) {
+            if (!filter.test(id)) continue;
+            flags[id] = enabled;
+            n++;
+        }
+        return n;
+    }
+
+    private interface IdFilter {
+        boolean test(int id);
+    }
+
+    private Switches() {}
+}
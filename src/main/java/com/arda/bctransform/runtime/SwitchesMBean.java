@@ -0,0 +1,19 @@
+package com.arda.bctransform.runtime;
+
+public interface SwitchesMBean {
+    int getMethodCount();
+
+    int getEnabledCount();
+
+    String[] getDisabledMethods();
+
+    int enableAll();
+
+    int disableAll();
+
+    int setClassEnabled(String className, boolean enabled);
+
+    int setMethodEnabled(String className, String method, boolean enabled);
+
+    int setMatchingEnabled(String regex, boolean enabled);
+}